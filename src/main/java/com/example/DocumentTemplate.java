@@ -0,0 +1,214 @@
+package com.example;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+import com.example.SyslogParser.Rfc3164;
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 受信毎にFieldを生成せず、値だけ差し替えて使い回すドキュメント
+// IndexBatcherのキューで登録待ちの間も参照されるため、スレッド毎ではなく登録後にrelease()で返却する
+public class DocumentTemplate implements Iterable<IndexableField> {
+
+    private static final Queue<DocumentTemplate> pool = new ConcurrentLinkedQueue<>();
+
+    private final Document doc = new Document();
+    private final TextField raw = new TextField(LuceneFieldKeys.raw.name(), "", Field.Store.YES);
+    private final LongField sort = new LongField(LuceneFieldKeys.sort.name(), 0L, Field.Store.YES);
+    private final LongPoint timestamp = new LongPoint(LuceneFieldKeys.timestamp.name(), 0L);
+    private final StringField addr = new StringField(LuceneFieldKeys.addr.name(), "", Field.Store.YES);
+    private final IntPoint port = new IntPoint(LuceneFieldKeys.port.name(), 0);
+    private final StringField facility = new StringField(LuceneFieldKeys.facility.name(), "", Field.Store.YES);
+    private final StringField severity = new StringField(LuceneFieldKeys.severity.name(), "", Field.Store.YES);
+    private final StringField host = new StringField(LuceneFieldKeys.host.name(), "", Field.Store.YES);
+    private final TextField message = new TextField(LuceneFieldKeys.message.name(), "", Field.Store.YES);
+    private final StringField format = new StringField(LuceneFieldKeys.format.name(), "", Field.Store.YES);
+    // IndexPartitionsが書き込み時に割り当てる
+    private final LongField indexSeq = new LongField(IndexPartitions.SEQ, 0L, Field.Store.NO);
+    private final SortedNumericDocValuesField sortValues = new SortedNumericDocValuesField(LuceneFieldKeys.sort.name(), 0L);
+    private final StoredField timestampStored = new StoredField(LuceneFieldKeys.timestamp.name(), 0L);
+    private final NumericDocValuesField timestampValues = new NumericDocValuesField(LuceneFieldKeys.timestamp.name(), 0L);
+    private final StoredField portStored = new StoredField(LuceneFieldKeys.port.name(), 0);
+    private final BytesRef portBytes = new BytesRef(new byte[4]);
+    private final SortedDocValuesField portValues = new SortedDocValuesField(LuceneFieldKeys.port.name(), this.portBytes);
+    private final Values hostValues = new Values(LuceneFieldKeys.host);
+    private final Values addrValues = new Values(LuceneFieldKeys.addr);
+    private final Values facilityValues = new Values(LuceneFieldKeys.facility);
+    private final Values severityValues = new Values(LuceneFieldKeys.severity);
+    private final Values formatValues = new Values(LuceneFieldKeys.format);
+    private long timestampValue;
+    // 受信時にWriteAheadSpoolへ追記したseq(追記していない場合は0)
+    private long seq;
+
+    // StringFieldのSortedDocValuesField(UTF-8への変換先を使い回す)
+    private static class Values {
+        private final BytesRefBuilder bytes = new BytesRefBuilder();
+        private final SortedDocValuesField field;
+
+        private Values(LuceneFieldKeys key) {
+            this.field = new SortedDocValuesField(key.name(), this.bytes.get());
+        }
+
+        private SortedDocValuesField set(String value) {
+            this.bytes.copyChars(value);
+            this.field.setBytesValue(this.bytes.get());
+            return this.field;
+        }
+    }
+
+    public static DocumentTemplate acquire() {
+        DocumentTemplate template = pool.poll();
+        return template != null ? template : new DocumentTemplate();
+    }
+
+    // IndexWriterへの登録後に呼ぶこと(以降はdocument()の内容が書き換わる)
+    public void release() {
+        this.seq = 0;
+        pool.offer(this);
+    }
+
+    public Document set(long timestamp, String addr, int port, Rfc3164 log) {
+        return this.set(
+            timestamp,
+            addr,
+            port,
+            log.raw,
+            log.host,
+            log.message,
+            log.format,
+            log.facility != null ? log.facility.name() : null,
+            log.severity != null ? log.severity.name() : null
+        );
+    }
+
+    // copy()で複製した保存済みの値から検索可能なドキュメントを作る
+    public Document set(Document stored) {
+        return this.set(
+            Long.parseLong(stored.get(LuceneFieldKeys.timestamp.name())),
+            stored.get(LuceneFieldKeys.addr.name()),
+            Integer.parseInt(stored.get(LuceneFieldKeys.port.name())),
+            stored.get(LuceneFieldKeys.raw.name()),
+            stored.get(LuceneFieldKeys.host.name()),
+            stored.get(LuceneFieldKeys.message.name()),
+            stored.get(LuceneFieldKeys.format.name()),
+            stored.get(LuceneFieldKeys.facility.name()),
+            stored.get(LuceneFieldKeys.severity.name())
+        );
+    }
+
+    private Document set(long timestamp, String addr, int port, String raw, String host, String message, String format, String facility, String severity) {
+        this.timestampValue = timestamp;
+        this.doc.clear();
+        this.raw.setStringValue(raw);
+        this.doc.add(this.raw);
+        this.sort.setLongValue(timestamp);
+        this.doc.add(this.sort);
+        this.timestamp.setLongValue(timestamp);
+        this.doc.add(this.timestamp);
+        this.addr.setStringValue(addr);
+        this.doc.add(this.addr);
+        this.port.setIntValue(port);
+        this.doc.add(this.port);
+        // PRIが無い場合はfacility・severityを登録しない
+        if (facility != null) {
+            this.facility.setStringValue(facility);
+            this.doc.add(this.facility);
+        }
+        if (severity != null) {
+            this.severity.setStringValue(severity);
+            this.doc.add(this.severity);
+        }
+        this.host.setStringValue(host);
+        this.doc.add(this.host);
+        this.message.setStringValue(message);
+        this.doc.add(this.message);
+        this.format.setStringValue(format);
+        this.doc.add(this.format);
+        // TODO: DocValuesFieldの必要性を見直し
+        this.sortValues.setLongValue(timestamp);
+        this.doc.add(this.sortValues);
+        this.timestampStored.setLongValue(timestamp);
+        this.doc.add(this.timestampStored);
+        this.timestampValues.setLongValue(timestamp);
+        this.doc.add(this.timestampValues);
+        this.portStored.setIntValue(port);
+        this.doc.add(this.portStored);
+        byte[] bytes = this.portBytes.bytes;
+        bytes[0] = (byte) (port >>> 24);
+        bytes[1] = (byte) (port >>> 16);
+        bytes[2] = (byte) (port >>> 8);
+        bytes[3] = (byte) port;
+        this.doc.add(this.portValues);
+        this.doc.add(this.hostValues.set(host));
+        this.doc.add(this.addrValues.set(addr));
+        if (facility != null) this.doc.add(this.facilityValues.set(facility));
+        if (severity != null) this.doc.add(this.severityValues.set(severity));
+        this.doc.add(this.formatValues.set(format));
+        this.indexSeq.setLongValue(0L);
+        this.doc.add(this.indexSeq);
+        return this.doc;
+    }
+
+    // 受信時のドキュメントは登録後に再利用されるため、非同期で参照する場合は保存する値だけを複製する
+    // timestamp・portなどの数値はnumericValue()で参照できるよう数値のまま複製する
+    public static Document copy(Document doc) {
+        Document copy = new Document();
+        for (IndexableField field: doc) {
+            if (!field.fieldType().stored()) continue;
+            Number number = field.numericValue();
+            if (number instanceof Integer value) {
+                copy.add(new StoredField(field.name(), value.intValue()));
+            } else if (number instanceof Long value) {
+                copy.add(new StoredField(field.name(), value.longValue()));
+            } else if (number instanceof Float value) {
+                copy.add(new StoredField(field.name(), value.floatValue()));
+            } else if (number instanceof Double value) {
+                copy.add(new StoredField(field.name(), value.doubleValue()));
+            } else if (field.stringValue() != null) {
+                copy.add(new StoredField(field.name(), field.stringValue()));
+            }
+        }
+        return copy;
+    }
+
+    public Document document() {
+        return this.doc;
+    }
+
+    public long timestamp() {
+        return this.timestampValue;
+    }
+
+    public long seq() {
+        return this.seq;
+    }
+
+    public void seq(long seq) {
+        this.seq = seq;
+    }
+
+    public void indexSeq(long seq) {
+        this.indexSeq.setLongValue(seq);
+    }
+
+    @Override
+    public Iterator<IndexableField> iterator() {
+        return this.doc.iterator();
+    }
+}
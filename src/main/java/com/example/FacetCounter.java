@@ -0,0 +1,95 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.BytesRef;
+
+// 一致したドキュメントをSortedDocValuesの値毎に数える(複数フィールドを1回の検索で数える)
+// セグメント内はordinal毎の配列で数え、セグメントの終了時に値へ変換して合算する
+public class FacetCounter implements CollectorManager<FacetCounter.Counter, Map<String, Map<BytesRef, Long>>> {
+
+    private final List<String> fields;
+
+    public FacetCounter(List<String> fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public Counter newCollector() {
+        return new Counter(this.fields);
+    }
+
+    @Override
+    public Map<String, Map<BytesRef, Long>> reduce(Collection<Counter> collectors) {
+        Map<String, Map<BytesRef, Long>> result = new HashMap<>();
+        for (String field: this.fields) result.put(field, new HashMap<>());
+        for (Counter collector: collectors) merge(result, collector.counts);
+        return result;
+    }
+
+    public static void merge(Map<String, Map<BytesRef, Long>> dst, Map<String, Map<BytesRef, Long>> src) {
+        for (Map.Entry<String, Map<BytesRef, Long>> field: src.entrySet()) {
+            Map<BytesRef, Long> count = dst.computeIfAbsent(field.getKey(), key -> new HashMap<>());
+            for (Map.Entry<BytesRef, Long> entry: field.getValue().entrySet()) {
+                count.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+    }
+
+    public static class Counter extends SimpleCollector {
+
+        private final String[] fields;
+        private final Map<String, Map<BytesRef, Long>> counts = new HashMap<>();
+        private final SortedDocValues[] values;
+        private final int[][] ords;
+
+        private Counter(List<String> fields) {
+            this.fields = fields.toArray(new String[0]);
+            this.values = new SortedDocValues[this.fields.length];
+            this.ords = new int[this.fields.length][];
+            for (String field: this.fields) this.counts.put(field, new HashMap<>());
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            for (int i = 0; i < this.fields.length; i++) {
+                this.values[i] = DocValues.getSorted(context.reader(), this.fields[i]);
+                this.ords[i] = new int[this.values[i].getValueCount()];
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            for (int i = 0; i < this.fields.length; i++) {
+                if (this.values[i].advanceExact(doc)) this.ords[i][this.values[i].ordValue()]++;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            for (int i = 0; i < this.fields.length; i++) {
+                Map<BytesRef, Long> count = this.counts.get(this.fields[i]);
+                for (int ord = 0; ord < this.ords[i].length; ord++) {
+                    if (this.ords[i][ord] == 0) continue;
+                    count.merge(BytesRef.deepCopyOf(this.values[i].lookupOrd(ord)), (long) this.ords[i][ord], Long::sum);
+                }
+                this.ords[i] = null;
+            }
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
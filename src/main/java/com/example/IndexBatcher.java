@@ -0,0 +1,271 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class IndexBatcher implements Runnable, Closeable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final Document CLOSE = new Document();
+    private static final String SPOOL_SEQ = "spool.seq";
+
+    public static enum Durability {
+        // バッチ毎にcommitする(受信中に溜まったドキュメントをまとめてcommit)
+        batch,
+        // commit.docs件またはcommit.interval経過毎にcommitする
+        interval;
+    }
+
+    private final IndexPartitions partitions;
+    private final BlockingQueue<Iterable<? extends IndexableField>> queue;
+    private final int batchSize;
+    private final int commitDocs;
+    private final long commitInterval;
+    private final Durability durability;
+    private final WriteAheadSpool spool;
+    private Thread worker;
+    private volatile boolean active = true;
+    // spoolを使う場合に登録・commitに失敗して止まった原因
+    private volatile Exception failed;
+
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong pendingSince = new AtomicLong();
+    private volatile long indexed = 0;
+    private volatile long committed = 0;
+    private volatile long commits = 0;
+    private volatile long uncommitted = 0;
+    private volatile long lastCommit = new Date().getTime();
+    private volatile long lastCommitMs = 0;
+
+    public IndexBatcher(IndexPartitions partitions) {
+        this(partitions, null);
+    }
+
+    public IndexBatcher(IndexPartitions partitions, WriteAheadSpool spool) {
+        this(
+            partitions,
+            spool,
+            Settings.getLuceneBatchQueue(),
+            Settings.getLuceneBatchSize(),
+            Settings.getLuceneCommitDocs(),
+            Settings.getLuceneCommitInterval(),
+            Durability.valueOf(Settings.getLuceneCommitDurability())
+        );
+    }
+
+    public IndexBatcher(IndexPartitions partitions, WriteAheadSpool spool, int queueSize, int batchSize, int commitDocs, long commitInterval, Durability durability) {
+        this.partitions = partitions;
+        this.spool = spool;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.commitDocs = commitDocs;
+        this.commitInterval = commitInterval;
+        this.durability = durability;
+    }
+
+    public void start() throws IOException {
+        if (this.spool != null) this.replay();
+        this.worker = new Thread(this, "IndexBatcher");
+        this.worker.start();
+    }
+
+    // 前回commitされなかったログをspoolから再登録する
+    private void replay() throws IOException {
+        long committed = 0;
+        // 期間毎に分割している場合は最後にcommitした期間の値
+        for (Map<String, String> data: this.partitions.getCommitData()) {
+            if (data.containsKey(SPOOL_SEQ)) committed = Math.max(committed, Long.valueOf(data.get(SPOOL_SEQ)));
+        }
+        try {
+            this.spool.replay(committed, (seq, timestamp, addr, port, data) -> {
+                this.partitions.add(SyslogReceiver.parse(timestamp, addr, port, SyslogParser.parser().parse(data, 0, data.length, addr)));
+                this.indexed++;
+                this.uncommitted++;
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        this.commit();
+    }
+
+    // DocumentTemplateはIndexWriterへの登録後に返却する
+    public void add(Iterable<? extends IndexableField> doc) throws IOException {
+        if (!this.active) throw this.stopped();
+        this.pendingSince.compareAndSet(0, new Date().getTime());
+        try {
+            // 登録が止まった場合にキューの空きを待ち続けないよう、待つ間も状態を確認する
+            while (!this.queue.offer(doc, 100, TimeUnit.MILLISECONDS)) {
+                if (!this.active) throw this.stopped();
+            }
+            this.added.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private IOException stopped() {
+        if (this.failed != null) return new IOException("IndexBatcher stopped by index failure.", this.failed);
+        return new IOException("IndexBatcher already closed.");
+    }
+
+    @Override
+    public void run() {
+        List<Iterable<? extends IndexableField>> batch = new ArrayList<>(this.batchSize);
+        logger.atInfo().setMessage(
+            "IndexBatcher start."
+        ).addKeyValue(
+            "durability", this.durability
+        ).addKeyValue(
+            "batch size", this.batchSize
+        ).addKeyValue(
+            "commit docs", this.commitDocs
+        ).addKeyValue(
+            "commit interval", this.commitInterval
+        ).log();
+        while (this.active || !this.queue.isEmpty()) {
+            try {
+                long wait = this.uncommitted > 0
+                    ? Math.max(1, this.lastCommit + this.commitInterval - new Date().getTime())
+                    : this.commitInterval;
+                Iterable<? extends IndexableField> first = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, this.batchSize - 1);
+                    batch.removeIf(doc -> doc == CLOSE);
+                }
+                if (!batch.isEmpty()) {
+                    // 受信時にspoolへ追記した分をディスクへ書き出してから登録する
+                    if (this.spool != null) this.spool.sync();
+                    this.partitions.add(batch);
+                    this.indexed += batch.size();
+                    this.uncommitted += batch.size();
+                    this.release(batch, true);
+                }
+                if (this.shouldCommit()) this.commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.atError().log("IndexBatcher index failed.", e);
+                if (this.spool != null) {
+                    // 登録できなかったドキュメントはspoolの未登録のまま残し、以降はcommitせずに止める
+                    // (commitするとspoolの位置が進む・途中まで登録した分が再登録で重複するため、再起動時にspoolから再登録する)
+                    this.failed = e;
+                    this.active = false;
+                    this.release(batch, false);
+                    this.queue.drainTo(batch);
+                    this.release(batch, false);
+                    break;
+                }
+                this.release(batch, true);
+                if (!this.partitions.isOpen()) break;
+            }
+        }
+        try {
+            if (this.failed == null && this.partitions.isOpen()) this.commit();
+        } catch (Exception e) {
+            logger.atError().log("IndexBatcher commit failed.", e);
+        }
+        logger.atInfo().log("IndexBatcher stop.");
+    }
+
+    // ドキュメントを返却する(doneがtrueの場合は登録済み・登録を諦めたとしてspoolの未登録から外す)
+    private void release(List<Iterable<? extends IndexableField>> batch, boolean done) {
+        for (Iterable<? extends IndexableField> doc: batch) {
+            if (doc instanceof DocumentTemplate template) {
+                if (done && this.spool != null) this.spool.done(template.seq());
+                template.release();
+            }
+        }
+        batch.clear();
+    }
+
+    private boolean shouldCommit() {
+        if (this.uncommitted == 0) return false;
+        // spoolの追記先が埋まる前に、もう半分を上書きできるようにする
+        if (this.spool != null && this.spool.shouldCommit()) return true;
+        switch (this.durability) {
+            case batch:
+                return true;
+            case interval:
+            default:
+                return this.uncommitted >= this.commitDocs
+                    || new Date().getTime() - this.lastCommit >= this.commitInterval;
+        }
+    }
+
+    private void commit() throws IOException {
+        long start = new Date().getTime();
+        long count = this.uncommitted;
+        // spoolのどこまでを登録済みかを記録し、再起動時はその続きから再登録する
+        long seq = this.spool != null ? this.spool.watermark() : 0;
+        this.partitions.commit(this.spool != null ? Map.of(SPOOL_SEQ, String.valueOf(seq)) : null);
+        if (this.spool != null) this.spool.commit(seq);
+        long end = new Date().getTime();
+        this.committed += count;
+        this.uncommitted = 0;
+        this.commits++;
+        this.lastCommit = end;
+        this.lastCommitMs = end - start;
+        // commit中に受信したドキュメントはcommit開始時刻から未commitとみなす
+        this.pendingSince.set(this.queue.isEmpty() ? 0 : start);
+        logger.atDebug().setMessage(
+            "IndexBatcher committed."
+        ).addKeyValue(
+            "docs", count
+        ).addKeyValue(
+            "ms", this.lastCommitMs
+        ).log();
+    }
+
+    public Map<String, Object> getStats() {
+        long now = new Date().getTime();
+        long since = this.pendingSince.get();
+        return new HashMap<>() {{
+            this.put("durability", durability.name());
+            this.put("failed", failed != null);
+            this.put("queued", queue.size());
+            this.put("added", added.get());
+            this.put("indexed", indexed);
+            this.put("committed", committed);
+            this.put("commits", commits);
+            this.put("lastCommit", lastCommit);
+            this.put("lastCommitMs", lastCommitMs);
+            this.put("commitLag", since == 0 ? 0 : now - since);
+        }};
+    }
+
+    @Override
+    public void close() throws IOException {
+        // IndexWriterの処理中にinterruptするとindexが壊れるため、終了用のドキュメントで起こす
+        this.active = false;
+        if (this.worker == null) return;
+        try {
+            // 失敗で止まった後はキューを読まないため、空きを待たない
+            while (this.worker.isAlive() && !this.queue.offer(CLOSE, 100, TimeUnit.MILLISECONDS));
+            this.worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.ReaderManager;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 受信日時の期間(日・週・月)毎にindexを分けて保存する
+// 書き込むのは現在の期間(と境界直後の前の期間)だけで、それ以外は読み取り専用で開き、保持期限を過ぎた期間はディレクトリ毎削除する
+public class IndexPartitions implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(IndexPartitions.class);
+
+    // 期間の境界を過ぎても、遅れて届いたログのために書き込み可能なままにしておく時間(ミリ秒)
+    private static final long ROLL_GRACE = 10 * 60 * 1000;
+
+    private static final DateTimeFormatter NAME = DateTimeFormatter.BASIC_ISO_DATE;
+
+    // 分割の単位を記録するファイル(分割しない場合は作らない)
+    private static final String LAYOUT = "partition";
+
+    // 書き込み順の連番(同じ日時のドキュメントの並び順、カーソルに使うため期間・セグメントを跨いで一意)
+    public static final String SEQ = "seq";
+
+    // 新しい順(検索結果の並び順と同じ)
+    public static final Sort NEWEST = new Sort(new SortedNumericSortField(
+        LuceneFieldKeys.sort.name(),
+        SortField.Type.LONG,
+        true
+    ), new SortedNumericSortField(
+        SEQ,
+        SortField.Type.LONG,
+        true
+    ));
+
+    // seqを追加する前の並び順(この並び順で書き込んだindexはそのまま追記する)
+    private static final Sort TIMESTAMP = new Sort(new SortedNumericSortField(
+        LuceneFieldKeys.sort.name(),
+        SortField.Type.LONG,
+        true
+    ));
+
+    public static enum Mode {
+        // 分割しない(lucene.index直下に保存)
+        none,
+        day,
+        week,
+        month;
+    }
+
+    private static class Partition {
+        private final String name;
+        // 期間の開始・終了(終了は含まない)
+        private final long start;
+        private final long end;
+        private final FSDirectory dir;
+        private IndexWriter writer;
+        private ReaderManager readers;
+
+        private Partition(String name, long start, long end, FSDirectory dir) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.dir = dir;
+        }
+    }
+
+    private final Path path;
+    private final Mode mode;
+    private final Analyzer analyzer;
+    // 期間の境界(日付の切り替わり)のタイムゾーン
+    private final ZoneId zone;
+    private final int retentionDays;
+    private final long retentionBytes;
+    private final boolean sorted;
+    private final boolean readOnly;
+    // 期間の開始日時の順
+    private final NavigableMap<Long, Partition> partitions = new ConcurrentSkipListMap<>();
+    // 検索用に公開する全期間のReaderManager(期間・readerの入れ替え毎に作り直し、acquireは書き込みのロックを待たない)
+    private volatile List<ReaderManager> snapshot = List.of();
+    private volatile boolean open = true;
+    private long dropped = 0;
+    private long rejected = 0;
+    // 最後に割り当てたseq
+    private long seq = 0;
+
+    public IndexPartitions(Path path, Analyzer analyzer) throws IOException {
+        this(path, analyzer, false);
+    }
+
+    // readOnlyの場合はwriterを開かず、書き込み・保持期限による削除をしない(マイグレーションの移行元など)
+    public IndexPartitions(Path path, Analyzer analyzer, boolean readOnly) throws IOException {
+        this(
+            path,
+            analyzer,
+            Mode.valueOf(Settings.getLucenePartition()),
+            Settings.getLuceneRetentionDays(),
+            Settings.getLuceneRetentionBytes(),
+            Settings.getLuceneIndexSort(),
+            zone(Settings.getUserTimezone()),
+            readOnly
+        );
+    }
+
+    public IndexPartitions(Path path, Analyzer analyzer, Mode mode, int retentionDays, long retentionBytes, boolean sorted, ZoneId zone) throws IOException {
+        this(path, analyzer, mode, retentionDays, retentionBytes, sorted, zone, false);
+    }
+
+    public IndexPartitions(Path path, Analyzer analyzer, Mode mode, int retentionDays, long retentionBytes, boolean sorted, ZoneId zone, boolean readOnly) throws IOException {
+        this.path = path;
+        this.mode = mode;
+        this.analyzer = analyzer;
+        this.zone = zone;
+        this.retentionDays = retentionDays;
+        this.retentionBytes = retentionBytes;
+        this.sorted = sorted;
+        this.readOnly = readOnly;
+        this.checkLayout();
+        if (mode == Mode.none) {
+            Partition partition = new Partition("", Long.MIN_VALUE, Long.MAX_VALUE, FSDirectory.open(path));
+            if (readOnly) {
+                partition.readers = new ReaderManager(partition.dir);
+            } else {
+                this.openWriter(partition);
+            }
+            this.partitions.put(partition.start, partition);
+        } else {
+            if (!readOnly) Files.createDirectories(path);
+            // 分割前のindexが残っている場合は読み取り専用で検索対象に含める(保持期限による削除はしない)
+            FSDirectory legacy = FSDirectory.open(path);
+            if (DirectoryReader.indexExists(legacy)) {
+                Partition partition = new Partition("", Long.MIN_VALUE, Long.MIN_VALUE, legacy);
+                partition.readers = new ReaderManager(legacy);
+                this.partitions.put(partition.start, partition);
+            } else {
+                legacy.close();
+            }
+            try (Stream<Path> dirs = Files.list(path)) {
+                for (Path dir: dirs.filter(Files::isDirectory).sorted().toList()) {
+                    LocalDate start;
+                    try {
+                        start = LocalDate.parse(dir.getFileName().toString(), NAME);
+                    } catch (DateTimeParseException e) {
+                        continue;
+                    }
+                    Partition partition = this.partition(start);
+                    if (!DirectoryReader.indexExists(partition.dir)) {
+                        logger.atWarn().addKeyValue("partition", partition.name).log("IndexPartitions empty partition skipped.");
+                        partition.dir.close();
+                        continue;
+                    }
+                    partition.readers = new ReaderManager(partition.dir);
+                    this.partitions.put(partition.start, partition);
+                }
+            }
+        }
+        this.publish();
+        this.seq = this.maxSeq();
+        logger.atInfo().addKeyValue(
+            "path", path
+        ).addKeyValue(
+            "mode", mode
+        ).addKeyValue(
+            "zone", zone
+        ).addKeyValue(
+            "partitions", this.partitions.size()
+        ).addKeyValue(
+            "seq", this.seq
+        ).log("IndexPartitions opened.");
+    }
+
+    // 分割した単位と異なる単位で開くと、既存の期間の範囲を誤り検索・保持期限の対象から外れるため開かない
+    // 単位を記録する前のindexは、ディレクトリ名が期間の開始日と一致するかで確認する
+    private void checkLayout() throws IOException {
+        Path file = this.path.resolve(LAYOUT);
+        if (Files.exists(file)) {
+            String layout = Files.readString(file).trim();
+            if (!layout.equals(this.mode.name())) {
+                throw new IOException("IndexPartitions partitioned by " + layout + ", but lucene.partition is " + this.mode + ": " + this.path);
+            }
+            return;
+        }
+        if (this.mode == Mode.none) return;
+        if (!this.readOnly) Files.createDirectories(this.path);
+        try (Stream<Path> dirs = Files.list(this.path)) {
+            for (Path dir: dirs.filter(Files::isDirectory).toList()) {
+                String name = dir.getFileName().toString();
+                LocalDate start;
+                try {
+                    start = LocalDate.parse(name, NAME);
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                if (!this.start(start).format(NAME).equals(name)) {
+                    throw new IOException("IndexPartitions partition " + name + " does not match lucene.partition " + this.mode + ": " + this.path);
+                }
+            }
+        }
+        if (!this.readOnly) Files.writeString(file, this.mode.name());
+    }
+
+    private static ZoneId zone(String zone) {
+        if (zone == null || zone.isEmpty()) return ZoneId.systemDefault();
+        try {
+            return ZoneId.of(zone);
+        } catch (Exception e) {
+            logger.atWarn().addKeyValue("system.timezone", zone).log("IndexPartitions illegal timezone.");
+            return ZoneId.systemDefault();
+        }
+    }
+
+    // 全期間で登録済みのseqの最大値(seqの無いindexは0)
+    private long maxSeq() throws IOException {
+        long max = 0;
+        for (ReaderManager manager: this.snapshot) {
+            DirectoryReader reader = manager.acquire();
+            try {
+                for (LeafReaderContext context: reader.leaves()) {
+                    PointValues points = context.reader().getPointValues(SEQ);
+                    if (points != null) max = Math.max(max, LongPoint.decodeDimension(points.getMaxPackedValue(), 0));
+                }
+            } finally {
+                manager.release(reader);
+            }
+        }
+        return max;
+    }
+
+    // readerを入れ替えた後、古いreaderを閉じる前に呼ぶ
+    private void publish() {
+        List<ReaderManager> snapshot = new ArrayList<>();
+        for (Partition partition: this.partitions.values()) snapshot.add(partition.readers);
+        this.snapshot = List.copyOf(snapshot);
+    }
+
+    // dateを含む期間の開始日
+    private LocalDate start(LocalDate date) {
+        switch (this.mode) {
+            case week:
+                return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case month:
+                return date.withDayOfMonth(1);
+            case day:
+            default:
+                return date;
+        }
+    }
+
+    private Partition partition(LocalDate date) throws IOException {
+        LocalDate start = this.start(date);
+        LocalDate end;
+        switch (this.mode) {
+            case week:
+                end = start.plusWeeks(1);
+                break;
+            case month:
+                end = start.plusMonths(1);
+                break;
+            case day:
+            default:
+                end = start.plusDays(1);
+                break;
+        }
+        String name = start.format(NAME);
+        return new Partition(
+            name,
+            start.atStartOfDay(this.zone).toInstant().toEpochMilli(),
+            end.atStartOfDay(this.zone).toInstant().toEpochMilli(),
+            FSDirectory.open(this.path.resolve(name))
+        );
+    }
+
+    private void openWriter(Partition partition) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(this.analyzer);
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        // commitはcommit()だけで行う(IndexBatcherが止まった後にcloseでcommitすると、spoolの位置より後のドキュメントが再登録で重複する)
+        iwc.setCommitOnClose(false);
+        if (this.sorted) {
+            Sort sort = indexSort(partition.dir);
+            if (sort != null) {
+                // 新しい順に並べて書き込み、新しい順の検索は必要な件数を集めた時点で打ち切る
+                iwc.setIndexSort(sort);
+            } else {
+                logger.atWarn().addKeyValue("partition", partition.name).log("IndexPartitions index is not sorted, run migration.");
+            }
+        }
+        partition.writer = new IndexWriter(partition.dir, iwc);
+        ReaderManager readers = partition.readers;
+        partition.readers = new ReaderManager(partition.writer);
+        this.publish();
+        if (readers != null) readers.close();
+    }
+
+    // 書き込み済みのセグメントと同じ並び順(並べ替えずに書き込んだセグメントがある場合はnullで並べ替えて開けない)
+    // seqの無い並び順のindexは、検索を打ち切れないがそのまま追記する
+    private static Sort indexSort(FSDirectory dir) throws IOException {
+        if (!DirectoryReader.indexExists(dir)) return NEWEST;
+        Sort sort = null;
+        for (SegmentCommitInfo info: SegmentInfos.readLatestCommit(dir)) {
+            Sort segment = info.info.getIndexSort();
+            if (!NEWEST.equals(segment) && !TIMESTAMP.equals(segment)) return null;
+            if (sort != null && !sort.equals(segment)) return null;
+            sort = segment;
+        }
+        return sort != null ? sort : NEWEST;
+    }
+
+    private void closeWriter(Partition partition) throws IOException {
+        ReaderManager readers = partition.readers;
+        partition.writer.close();
+        partition.writer = null;
+        partition.readers = new ReaderManager(partition.dir);
+        this.publish();
+        readers.close();
+    }
+
+    // timestampを含む期間のwriterを返す(読み取り専用の期間は開き直す)
+    private synchronized Partition writable(long timestamp) throws IOException {
+        if (!this.open) throw new AlreadyClosedException("IndexPartitions already closed.");
+        if (this.readOnly) throw new IOException("IndexPartitions opened read-only.");
+        Map.Entry<Long, Partition> entry = this.partitions.floorEntry(timestamp);
+        Partition partition = entry != null && timestamp < entry.getValue().end ? entry.getValue() : null;
+        if (partition == null) {
+            partition = this.partition(Instant.ofEpochMilli(timestamp).atZone(this.zone).toLocalDate());
+            this.openWriter(partition);
+            this.partitions.put(partition.start, partition);
+            this.publish();
+            logger.atInfo().addKeyValue("partition", partition.name).log("IndexPartitions partition created.");
+        } else if (partition.writer == null) {
+            this.openWriter(partition);
+        }
+        return partition;
+    }
+
+    private static long timestamp(Iterable<? extends IndexableField> doc) {
+        if (doc instanceof DocumentTemplate template) return template.timestamp();
+        for (IndexableField field: doc) {
+            if (field.name().equals(LuceneFieldKeys.timestamp.name()) && field.fieldType().stored() && field.numericValue() != null) {
+                return field.numericValue().longValue();
+            }
+        }
+        return new Date().getTime();
+    }
+
+    // 並べ替えるindexではaddDocumentsがブロック(親子関係)扱いになるため1件ずつ書き込む
+    // 登録できないドキュメント(長すぎる語など、IndexWriterはそのドキュメントだけを破棄する)は読み飛ばす
+    private void add(IndexWriter writer, List<? extends Iterable<? extends IndexableField>> docs) throws IOException {
+        if (writer.getConfig().getIndexSort() == null) {
+            try {
+                writer.addDocuments(docs);
+                return;
+            } catch (IllegalArgumentException e) {
+                // ブロック全体が破棄されるため1件ずつ登録し直す
+            }
+        }
+        for (Iterable<? extends IndexableField> doc: docs) {
+            try {
+                writer.addDocument(doc);
+            } catch (IllegalArgumentException e) {
+                this.rejected++;
+                logger.atWarn().log("IndexPartitions document rejected.", e);
+            }
+        }
+    }
+
+    // 書き込み順にseqを割り当てる(DocumentTemplate・Document以外はseqを付けない)
+    private void assign(Iterable<? extends IndexableField> doc) {
+        if (doc instanceof DocumentTemplate template) {
+            template.indexSeq(++this.seq);
+        } else if (doc instanceof Document document) {
+            document.removeFields(SEQ);
+            document.add(new LongField(SEQ, ++this.seq, Field.Store.NO));
+        }
+    }
+
+    // ドキュメントを受信日時の期間毎に振り分けて書き込む
+    public synchronized void add(List<? extends Iterable<? extends IndexableField>> docs) throws IOException {
+        if (docs.isEmpty()) return;
+        for (Iterable<? extends IndexableField> doc: docs) this.assign(doc);
+        if (this.mode == Mode.none) {
+            this.add(this.writable(0).writer, docs);
+            return;
+        }
+        Map<Partition, List<Iterable<? extends IndexableField>>> groups = new LinkedHashMap<>();
+        for (Iterable<? extends IndexableField> doc: docs) {
+            groups.computeIfAbsent(this.writable(timestamp(doc)), key -> new ArrayList<>()).add(doc);
+        }
+        for (Map.Entry<Partition, List<Iterable<? extends IndexableField>>> group: groups.entrySet()) {
+            this.add(group.getKey().writer, group.getValue());
+        }
+    }
+
+    public synchronized void add(Iterable<? extends IndexableField> doc) throws IOException {
+        this.add(List.of(doc));
+    }
+
+    // 書き込み中の全期間をcommitする(userDataがnullの場合は前回の値のまま)
+    public synchronized void commit(Map<String, String> userData) throws IOException {
+        for (Partition partition: this.partitions.values()) {
+            if (partition.writer == null) continue;
+            if (userData != null) partition.writer.setLiveCommitData(userData.entrySet());
+            partition.writer.commit();
+        }
+    }
+
+    // 全期間の最後のcommitで記録した値
+    public synchronized List<Map<String, String>> getCommitData() throws IOException {
+        List<Map<String, String>> data = new ArrayList<>();
+        for (Partition partition: this.partitions.values()) {
+            if (partition.writer != null) {
+                Map<String, String> map = new HashMap<>();
+                for (Map.Entry<String, String> entry: partition.writer.getLiveCommitData()) map.put(entry.getKey(), entry.getValue());
+                data.add(map);
+            } else if (DirectoryReader.indexExists(partition.dir)) {
+                data.add(DirectoryReader.listCommits(partition.dir).getLast().getUserData());
+            }
+        }
+        return data;
+    }
+
+    // 境界を過ぎた期間のwriterを閉じ、保持期限・合計サイズを超えた古い期間を削除する
+    public synchronized void maintain() throws IOException {
+        if (!this.open || this.readOnly || this.mode == Mode.none) return;
+        long now = new Date().getTime();
+        for (Partition partition: this.partitions.values()) {
+            // 未commitのドキュメントがある場合は次のcommit後に閉じる
+            if (partition.writer != null && partition.end + ROLL_GRACE < now && !partition.writer.hasUncommittedChanges()) {
+                this.closeWriter(partition);
+                logger.atInfo().addKeyValue("partition", partition.name).log("IndexPartitions partition closed.");
+            }
+        }
+        if (this.retentionDays > 0) {
+            long limit = now - this.retentionDays * 24L * 60 * 60 * 1000;
+            for (Partition partition: new ArrayList<>(this.partitions.values())) {
+                if (!partition.name.isEmpty() && partition.end <= limit) this.drop(partition);
+            }
+        }
+        if (this.retentionBytes > 0) {
+            long bytes = this.getBytes();
+            for (Partition partition: new ArrayList<>(this.partitions.values())) {
+                // 最新の期間は削除しない
+                if (bytes <= this.retentionBytes || partition == this.partitions.lastEntry().getValue()) break;
+                if (partition.name.isEmpty()) continue;
+                bytes -= size(partition);
+                this.drop(partition);
+            }
+        }
+    }
+
+    // 検索中のreaderは参照が無くなるまで有効(削除済みのファイルはOSが保持する)
+    private void drop(Partition partition) throws IOException {
+        this.partitions.remove(partition.start);
+        this.publish();
+        if (partition.writer != null) partition.writer.rollback();
+        partition.readers.close();
+        Path dir = partition.dir.getDirectory();
+        partition.dir.close();
+        IOUtils.rm(dir);
+        this.dropped++;
+        logger.atInfo().addKeyValue("partition", partition.name).log("IndexPartitions partition dropped.");
+    }
+
+    private static long size(Partition partition) throws IOException {
+        long size = 0;
+        for (String file: partition.dir.listAll()) {
+            try {
+                size += partition.dir.fileLength(file);
+            } catch (IOException e) {
+                // 書き込み中に削除されたファイル
+            }
+        }
+        return size;
+    }
+
+    private long getBytes() throws IOException {
+        long bytes = 0;
+        for (Partition partition: this.partitions.values()) {
+            if (!partition.name.isEmpty()) bytes += size(partition);
+        }
+        return bytes;
+    }
+
+    public void refresh() throws IOException {
+        for (Partition partition: this.partitions.values()) {
+            try {
+                partition.readers.maybeRefresh();
+            } catch (AlreadyClosedException e) {
+                // 削除・writerの切り替え中
+            }
+        }
+    }
+
+    // 全期間の最新のreaderを返す(使用後はDirectoryReader.decRefで返却すること)
+    public List<DirectoryReader> acquire() throws IOException {
+        while (true) {
+            List<ReaderManager> snapshot = this.snapshot;
+            List<DirectoryReader> readers = new ArrayList<>();
+            try {
+                for (ReaderManager manager: snapshot) readers.add(manager.acquire());
+                return readers;
+            } catch (AlreadyClosedException e) {
+                for (DirectoryReader reader: readers) reader.decRef();
+                // 取得中に期間の削除・writerの切り替えがあった場合は新しいsnapshotで取り直す
+                if (snapshot == this.snapshot) throw e;
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    public Path getDirectory() {
+        return this.path;
+    }
+
+    public synchronized Map<String, Object> getStats() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (Partition partition: this.partitions.values()) {
+            if (!partition.name.isEmpty()) names.add(partition.name);
+        }
+        long bytes = this.getBytes();
+        return new HashMap<>() {{
+            this.put("mode", mode.name());
+            this.put("partitions", names);
+            this.put("bytes", bytes);
+            this.put("dropped", dropped);
+            this.put("rejected", rejected);
+        }};
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.open = false;
+        this.snapshot = List.of();
+        for (Partition partition: this.partitions.values()) {
+            partition.readers.close();
+            if (partition.writer != null) partition.writer.close();
+            partition.dir.close();
+        }
+        this.partitions.clear();
+    }
+}
@@ -0,0 +1,114 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 索引の統計(timestampの最小・最大値、件数、期間・セグメント毎のサイズ)
+// ドキュメントを検索せずにセグメントの情報だけから求め、readerが変わるまで同じ結果を返す
+public class IndexStats {
+
+    private List<IndexReader.CacheKey> keys;
+    private Map<String, Object> stats;
+
+    public synchronized Map<String, Object> get(Path root, List<DirectoryReader> readers) throws IOException {
+        List<IndexReader.CacheKey> keys = new ArrayList<>();
+        for (DirectoryReader reader: readers) keys.add(reader.getReaderCacheHelper().getKey());
+        if (!keys.equals(this.keys)) {
+            this.stats = compute(root, readers);
+            this.keys = keys;
+        }
+        return this.stats;
+    }
+
+    private static Map<String, Object> compute(Path root, List<DirectoryReader> readers) throws IOException {
+        Counts total = new Counts();
+        List<Map<String, Object>> partitions = new ArrayList<>();
+        for (DirectoryReader reader: readers) {
+            Counts partition = new Counts();
+            List<Map<String, Object>> segments = new ArrayList<>();
+            for (LeafReaderContext context: reader.leaves()) {
+                Counts segment = new Counts();
+                segment.add(context.reader());
+                partition.add(segment);
+                Map<String, Object> stats = segment.toMap();
+                LeafReader leaf = FilterLeafReader.unwrap(context.reader());
+                if (leaf instanceof SegmentReader info) stats.put("name", info.getSegmentName());
+                segments.add(stats);
+            }
+            total.add(partition);
+            Map<String, Object> stats = partition.toMap();
+            stats.put("name", name(root, reader));
+            stats.put("segments", segments);
+            partitions.add(stats);
+        }
+        Map<String, Object> stats = total.toMap();
+        stats.put("partitions", partitions);
+        return stats;
+    }
+
+    // 期間のディレクトリ名(期間に分割していない索引は"")
+    private static String name(Path root, DirectoryReader reader) {
+        if (FilterDirectory.unwrap(reader.directory()) instanceof FSDirectory dir) {
+            return root.toAbsolutePath().relativize(dir.getDirectory().toAbsolutePath()).toString();
+        }
+        return reader.directory().toString();
+    }
+
+    private static class Counts {
+        private long docs = 0;
+        private long deleted = 0;
+        private long bytes = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        private void add(LeafReader reader) throws IOException {
+            this.docs += reader.numDocs();
+            this.deleted += reader.numDeletedDocs();
+            if (FilterLeafReader.unwrap(reader) instanceof SegmentReader segment) {
+                this.bytes += segment.getSegmentInfo().sizeInBytes();
+            }
+            // 削除済みのドキュメントが残っている場合は削除前の値になる
+            PointValues values = reader.getPointValues(LuceneFieldKeys.timestamp.name());
+            if (values != null && reader.numDocs() > 0) {
+                this.min = Math.min(this.min, LongPoint.decodeDimension(values.getMinPackedValue(), 0));
+                this.max = Math.max(this.max, LongPoint.decodeDimension(values.getMaxPackedValue(), 0));
+            }
+        }
+
+        private void add(Counts counts) {
+            this.docs += counts.docs;
+            this.deleted += counts.deleted;
+            this.bytes += counts.bytes;
+            this.min = Math.min(this.min, counts.min);
+            this.max = Math.max(this.max, counts.max);
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("docs", this.docs);
+            stats.put("deleted", this.deleted);
+            stats.put("deletedRatio", this.docs + this.deleted > 0 ? (double) this.deleted / (this.docs + this.deleted) : 0.0);
+            stats.put("bytes", this.bytes);
+            stats.put("min", this.min <= this.max ? this.min : null);
+            stats.put("max", this.min <= this.max ? this.max : null);
+            return stats;
+        }
+    }
+}
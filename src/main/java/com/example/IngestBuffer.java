@@ -0,0 +1,388 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 受信したパケットを解析・登録するまで保持するリングバッファ(複数producer/複数consumer、lock-free)
+// スロットは起動時に確保し、受信毎にデータをコピーして再利用する
+public class IngestBuffer implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(IngestBuffer.class);
+
+    // 送信元毎の統計を保持する上限(超えた分の送信元はまとめて数える)
+    private static final int MAX_SOURCES = 1024;
+    private static final String OTHER_SOURCES = "other";
+
+    public static enum Overflow {
+        // 空きができるまで受信側で待機
+        block,
+        // 受信したパケットを破棄
+        dropNewest,
+        // バッファ内の最も古いパケットを破棄
+        dropOldest,
+        // ディスクへ退避し、バッファが空いたら処理
+        spill;
+    }
+
+    public static class Slot {
+        public long timestamp;
+        public String addr;
+        public int port;
+        // WriteAheadSpoolのseq(追記していない場合は0)
+        public long seq;
+        public byte[] data = new byte[0];
+        public int length;
+
+        private void set(long timestamp, String addr, int port, long seq, int length) {
+            this.timestamp = timestamp;
+            this.addr = addr;
+            this.port = port;
+            this.seq = seq;
+            this.length = length;
+            if (this.data.length < length) this.data = new byte[Math.max(length, 1024)];
+        }
+    }
+
+    public static interface Handler {
+        void handle(Slot slot) throws Exception;
+    }
+
+    private static class Source {
+        private final LongAdder received = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder spilled = new LongAdder();
+        private final AtomicLong highWater = new AtomicLong();
+    }
+
+    private final Slot[] slots;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong highWater = new AtomicLong();
+    private final Overflow overflow;
+    private final SpillFile spill;
+    private final WriteAheadSpool spool;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    private volatile boolean active = true;
+
+    public IngestBuffer(WriteAheadSpool spool) throws IOException {
+        this(
+            Settings.getSyslogBufferSize(),
+            Overflow.valueOf(Settings.getSyslogBufferOverflow()),
+            Settings.getSyslogBufferSpill(),
+            Settings.getSyslogBufferSpillSize(),
+            spool
+        );
+    }
+
+    // spoolを指定した場合は受け入れたパケットをバッファへ入れる前に追記する(取り出した側が登録後にdoneで通知する)
+    public IngestBuffer(int size, Overflow overflow, String spill, long spillSize, WriteAheadSpool spool) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.slots = new Slot[capacity];
+        this.sequence = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            this.slots[i] = new Slot();
+            this.sequence.set(i, i);
+        }
+        this.overflow = overflow;
+        this.spool = spool;
+        this.spill = overflow == Overflow.spill ? new SpillFile(spill, spillSize, spool != null) : null;
+    }
+
+    public int capacity() {
+        return this.slots.length;
+    }
+
+    public int size() {
+        return (int) Math.max(0, this.tail.get() - this.head.get());
+    }
+
+    public boolean offer(long timestamp, String addr, int port, byte[] src, int offset, int length) throws IOException {
+        return this.offer(timestamp, addr, port, ByteBuffer.wrap(src, offset, length));
+    }
+
+    // 送信元アドレスは偽装できるため、上限を超えた新しい送信元は1つにまとめる
+    private Source source(String addr) {
+        Source source = this.sources.get(addr);
+        if (source != null) return source;
+        String key = this.sources.size() < MAX_SOURCES ? addr : OTHER_SOURCES;
+        return this.sources.computeIfAbsent(key, k -> new Source());
+    }
+
+    public boolean offer(long timestamp, String addr, int port, ByteBuffer src) throws IOException {
+        Source source = this.source(addr);
+        source.received.increment();
+        if (this.spill != null && !this.spill.isEmpty()) {
+            // 退避中は順序を保つため、退避ファイルが空になるまで追記する
+            return this.spill(source, timestamp, addr, port, src);
+        }
+        int idle = 0;
+        while (true) {
+            long pos = this.tail.get();
+            int idx = (int) (pos & this.mask);
+            long diff = this.sequence.get(idx) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    Slot slot = this.slots[idx];
+                    slot.set(timestamp, addr, port, this.append(timestamp, addr, port, src), src.remaining());
+                    src.get(slot.data, 0, slot.length);
+                    this.sequence.set(idx, pos + 1);
+                    long size = pos + 1 - this.head.get();
+                    this.highWater.accumulateAndGet(size, Math::max);
+                    source.highWater.accumulateAndGet(size, Math::max);
+                    return true;
+                }
+            } else if (diff < 0) {
+                switch (this.overflow) {
+                    case dropNewest:
+                        source.dropped.increment();
+                        return false;
+                    case dropOldest:
+                        try {
+                            this.poll(slot -> {
+                                this.source(slot.addr).dropped.increment();
+                                if (this.spool != null) this.spool.done(slot.seq);
+                            });
+                        } catch (Exception e) {
+                            throw new IOException(e);
+                        }
+                        break;
+                    case spill:
+                        return this.spill(source, timestamp, addr, port, src);
+                    case block:
+                    default:
+                        if (!this.active) {
+                            source.dropped.increment();
+                            return false;
+                        }
+                        idle = this.backoff(idle);
+                        break;
+                }
+            }
+        }
+    }
+
+    // spoolが一杯の場合は追記せずに受け入れる(0を返す)
+    private long append(long timestamp, String addr, int port, ByteBuffer src) {
+        return this.spool != null ? Math.max(0, this.spool.append(timestamp, addr, port, src)) : 0;
+    }
+
+    private boolean spill(Source source, long timestamp, String addr, int port, ByteBuffer src) throws IOException {
+        long seq = this.append(timestamp, addr, port, src);
+        if (this.spill.write(timestamp, addr, port, seq, src)) {
+            source.spilled.increment();
+            return true;
+        } else {
+            if (this.spool != null) this.spool.done(seq);
+            source.dropped.increment();
+            return false;
+        }
+    }
+
+    // 取り出したスロットはhandlerの処理が終わるまで再利用されない
+    public boolean poll(Handler handler) throws Exception {
+        while (true) {
+            long pos = this.head.get();
+            int idx = (int) (pos & this.mask);
+            long diff = this.sequence.get(idx) - (pos + 1);
+            if (diff == 0) {
+                if (this.head.compareAndSet(pos, pos + 1)) {
+                    try {
+                        handler.handle(this.slots[idx]);
+                    } finally {
+                        this.sequence.set(idx, pos + this.slots.length);
+                    }
+                    return true;
+                }
+            } else if (diff < 0) {
+                return this.spill != null && this.spill.read(handler);
+            }
+        }
+    }
+
+    // データが無い場合は待機し、stop後にデータが無くなった場合はfalseを返す
+    public boolean take(Handler handler) throws Exception {
+        int idle = 0;
+        while (!this.poll(handler)) {
+            if (!this.active) return false;
+            idle = this.backoff(idle);
+        }
+        return true;
+    }
+
+    private int backoff(int idle) {
+        if (idle < 100) {
+            Thread.onSpinWait();
+        } else if (idle < 200) {
+            Thread.yield();
+        } else {
+            // 待機が続く場合は徐々に間隔を延ばす(最大10ms)
+            LockSupport.parkNanos(Math.min(idle - 199, 100) * 100_000L);
+        }
+        return idle + 1;
+    }
+
+    public Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("overflow", overflow.name());
+            this.put("capacity", IngestBuffer.this.capacity());
+            this.put("size", IngestBuffer.this.size());
+            this.put("highWater", highWater.get());
+            this.put("received", sources.values().stream().mapToLong(source -> source.received.sum()).sum());
+            this.put("dropped", sources.values().stream().mapToLong(source -> source.dropped.sum()).sum());
+            this.put("spilled", sources.values().stream().mapToLong(source -> source.spilled.sum()).sum());
+            if (spill != null) this.put("spillBytes", spill.size());
+        }};
+    }
+
+    public Map<String, Map<String, Long>> getSourceStats() {
+        return new HashMap<>() {{
+            for (Map.Entry<String, Source> entry: sources.entrySet()) {
+                Source source = entry.getValue();
+                this.put(entry.getKey(), new HashMap<>() {{
+                    this.put("received", source.received.sum());
+                    this.put("dropped", source.dropped.sum());
+                    this.put("spilled", source.spilled.sum());
+                    this.put("highWater", source.highWater.get());
+                }});
+            }
+        }};
+    }
+
+    public void stop() {
+        this.active = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.stop();
+        if (this.spill != null) this.spill.close();
+    }
+
+    // レコード: timestamp(long) seq(long) addrの長さ(int) addr port(int) 長さ(int) data
+    private static class SpillFile implements Closeable {
+        private final RandomAccessFile file;
+        private final long limit;
+        // 読み出したレコードのコピー先(handlerはロックの外で呼ぶため、スレッド毎に持つ)
+        private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(Slot::new);
+        // 書き込むレコードの組み立て用(writeはsynchronizedのため共有する)
+        private ByteBuffer record = ByteBuffer.allocate(1024);
+        private long readPos = 0;
+        private long writePos = 0;
+        // 前回の終了時に残っていたレコードの終端(spoolに追記済みのレコードは起動時にspoolから再登録済みのため読み飛ばす)
+        private long recovered = 0;
+
+        // 前回の終了時に残っていたレコードは、起動後に受信したパケットより先に処理する
+        private SpillFile(String path, long limit, boolean spooled) throws IOException {
+            this.file = new RandomAccessFile(path, "rw");
+            this.limit = limit;
+            long records = 0;
+            long skipped = 0;
+            long length = this.file.length();
+            while (this.writePos < length) {
+                long next = this.next(this.writePos, length);
+                if (next < 0) break;
+                this.file.seek(this.writePos + 8);
+                if (spooled && this.file.readLong() > 0) skipped++;
+                this.writePos = next;
+                records++;
+            }
+            if (this.writePos < length) {
+                // 書き込み途中で終了したレコード
+                logger.atWarn().addKeyValue("path", path).addKeyValue("bytes", length - this.writePos).log("IngestBuffer spill file truncated.");
+                this.file.setLength(this.writePos);
+            }
+            if (spooled) this.recovered = this.writePos;
+            logger.atInfo().addKeyValue("path", path).addKeyValue("records", records).addKeyValue("spooled", skipped).log("IngestBuffer spill file opened.");
+        }
+
+        // posから始まるレコードの次の位置(レコードが途中で切れている場合は-1)
+        private long next(long pos, long length) throws IOException {
+            if (pos + 16 + 4 > length) return -1;
+            this.file.seek(pos + 16);
+            int host = this.file.readInt();
+            if (host < 0 || pos + 16 + 4 + host + 4 + 4 > length) return -1;
+            this.file.seek(pos + 16 + 4 + host + 4);
+            int data = this.file.readInt();
+            long next = pos + 16 + 4 + host + 4 + 4 + data;
+            return data < 0 || next > length ? -1 : next;
+        }
+
+        private synchronized boolean isEmpty() {
+            return this.readPos == this.writePos;
+        }
+
+        private synchronized long size() {
+            return this.writePos - this.readPos;
+        }
+
+        private synchronized boolean write(long timestamp, String addr, int port, long seq, ByteBuffer src) throws IOException {
+            byte[] host = addr.getBytes(StandardCharsets.UTF_8);
+            int length = src.remaining();
+            int size = 16 + 4 + host.length + 4 + 4 + length;
+            if (this.writePos + size > this.limit) return false;
+            // 1レコードをまとめてから1回で書き込む
+            if (this.record.capacity() < size) this.record = ByteBuffer.allocate(size);
+            this.record.clear();
+            this.record.putLong(timestamp).putLong(seq).putInt(host.length).put(host).putInt(port).putInt(length).put(src);
+            this.file.seek(this.writePos);
+            this.file.write(this.record.array(), 0, size);
+            this.writePos += size;
+            return true;
+        }
+
+        // 1レコードをコピーしてからロックを外してhandlerを呼ぶ(処理中も受信側は追記できる)
+        private boolean read(Handler handler) throws Exception {
+            Slot slot = this.slots.get();
+            synchronized (this) {
+                while (true) {
+                    if (this.readPos == this.writePos) return false;
+                    this.file.seek(this.readPos);
+                    long timestamp = this.file.readLong();
+                    long seq = this.file.readLong();
+                    byte[] host = new byte[this.file.readInt()];
+                    this.file.readFully(host);
+                    int port = this.file.readInt();
+                    int length = this.file.readInt();
+                    boolean skip = this.readPos < this.recovered && seq > 0;
+                    if (skip) {
+                        this.file.seek(this.file.getFilePointer() + length);
+                    } else {
+                        slot.set(timestamp, new String(host, StandardCharsets.UTF_8), port, seq, length);
+                        this.file.readFully(slot.data, 0, length);
+                    }
+                    this.readPos = this.file.getFilePointer();
+                    if (this.readPos == this.writePos) {
+                        this.readPos = 0;
+                        this.writePos = 0;
+                        this.recovered = 0;
+                        this.file.setLength(0);
+                    }
+                    if (!skip) break;
+                }
+            }
+            handler.handle(slot);
+            return true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.file.close();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.example;
 import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
 import java.util.function.Consumer;
 
 public class Job<T> {
@@ -15,6 +16,8 @@ public class Job<T> {
     private Consumer<Progress> eventListner;
     private Progress progress = new Progress();
     private Exception error;
+    private volatile boolean cancelled = false;
+    private Runnable cancelListener;
 
     public static interface Task<T> {
         void call(T file, Consumer<Progress> progress) throws Exception;
@@ -50,12 +53,14 @@ public class Job<T> {
                 this.progress.event = Event.start;
                 if (this.eventListner != null) this.eventListner.accept(progress);
                 task.call(this.data, progress -> {
+                    // キャンセルされた場合は次に進捗を通知した時点でtaskを中断する
+                    if (this.cancelled) throw new CancellationException("cancelled");
                     this.progress.event = Event.progress;
                     this.progress.max = progress.max;
                     this.progress.current = progress.current;
                 });
             } catch (Exception e) {
-                this.error = e;
+                this.error = this.cancelled ? new CancellationException("cancelled") : e;
             } finally {
                 this.timer.cancel();
                 this.finish = new Date().getTime();
@@ -77,6 +82,20 @@ public class Job<T> {
         }, this.interval, this.interval);
     }
 
+    // スレッドは割り込まずに、taskが進捗を通知した時点で中断する(実行中の検索はonCancelで打ち切る)
+    public void cancel() {
+        this.cancelled = true;
+        if (this.cancelListener != null) this.cancelListener.run();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public void onCancel(Runnable cancelListener) {
+        this.cancelListener = cancelListener;
+    }
+
     public Long getInterval() {
         return interval;
     }
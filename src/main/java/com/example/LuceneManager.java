@@ -2,148 +2,404 @@ package com.example;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.InvocationTargetException;
-import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.Analyzer.ReuseStrategy;
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
-import org.apache.lucene.analysis.AnalyzerWrapper;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.DocValues;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.ExitableDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.QueryTimeout;
 import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
 import org.apache.lucene.queryparser.flexible.standard.config.PointsConfig;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexOrDocValuesQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PointRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.grouping.GroupDocs;
-import org.apache.lucene.search.grouping.GroupingSearch;
-import org.apache.lucene.search.grouping.LongRange;
-import org.apache.lucene.search.grouping.LongRangeGroupSelector;
-import org.apache.lucene.search.grouping.TopGroups;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.TopFieldCollectorManager;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
 
 public class LuceneManager implements Closeable {
 
-    private FSDirectory dir;
-    private IndexWriter writer;
+    private static Logger logger = LoggerFactory.getLogger(LuceneManager.class);
+
+    // 書き込む期間の切り替え・保持期限を確認する間隔(ミリ秒)
+    private static final long MAINTAIN_INTERVAL = 60 * 1000;
+
+    private IndexPartitions partitions;
+    private IndexBatcher batcher;
+    private WriteAheadSpool spool;
+    private ExecutorService searcher;
+    private ResultCache cache = new ResultCache();
+    private IndexStats stats = new IndexStats();
+    private TermValues terms = new TermValues();
+    private SharedQueryCache queries = new SharedQueryCache();
+    private Timer refresher = new Timer("SearcherRefresher", true);
     private Analyzer writerAnalyzer;
     private Analyzer readerAnalyzer;
 
-    // TODO: 全てのデータを1つのindexディレクトリに保存するなら古いデータの削除機能が欲しい、月毎などで分けたほうがいい？
+    // 期間毎に分割したindexをまとめて1つのindexとして検索する
     public static class LuceneReader implements Closeable {
 
-        private static Object analyzerLock = new Object();
-        private final DirectoryReader reader;
+        private final List<DirectoryReader> readers;
+        private final IndexReader reader;
         private final IndexSearcher searcher;
         private final Analyzer analyzer;
+        private final ExecutorService executor;
+        private final ResultCache cache;
+        private final TermValues terms;
+        private final SharedQueryCache queries;
+        // 検索の時間の上限・キャンセル(nullの場合は無制限)
+        private final SearchTimeout timeout;
+        // 時系列で数える区間数の上限
+        private static final int MAX_BUCKETS = 10_000_000;
+
+        // 検索毎に渡し、時間切れ・キャンセルで途中までの結果を返した場合にtrueになる
+        public static class Partial {
+            private volatile boolean partial = false;
+
+            public boolean isPartial() {
+                return this.partial;
+            }
+        }
 
-        public LuceneReader(String path, Analyzer analyzer) throws IOException {
-            FSDirectory dir = FSDirectory.open(Paths.get(path));
-            this.reader = DirectoryReader.open(dir);
-            this.searcher = new IndexSearcher(this.reader);
+        public LuceneReader(IndexPartitions partitions, Analyzer analyzer, ExecutorService executor, ResultCache cache, TermValues terms, SharedQueryCache queries, SearchTimeout timeout) throws IOException {
+            this.readers = partitions.acquire();
+            this.reader = new MultiReader(this.readers.toArray(new IndexReader[0]), false);
+            this.searcher = queries.newSearcher(this.reader);
             this.analyzer = analyzer;
+            this.executor = executor;
+            this.cache = cache;
+            this.terms = terms;
+            this.queries = queries;
+            this.timeout = timeout;
         }
 
+        // timestampの範囲に一致しない期間・セグメントを除外し、残りをセグメント毎に並列で検索してマージする
+        // 結果のidはこのreader全体でのidに変換する
         public TopDocs search(String field, String query, Sort order, Map<String, PointsConfig> pointsConfig) throws ParseException, IOException, QueryNodeException {
+            return this.search(field, query, order, pointsConfig, Integer.MAX_VALUE, Integer.MAX_VALUE, new Partial());
+        }
+
+        // 上位limit件だけを返す、ヒット数はthreshold件までは正確に数え、超えた場合は下限値(totalHits.relationがGREATER_THAN_OR_EQUAL_TO)
+        // indexが検索と同じ順に並んでいる場合はlimit件集めた時点でセグメントの検索を打ち切る
+        public TopDocs search(String field, String query, Sort order, Map<String, PointsConfig> pointsConfig, int limit, int threshold, Partial partial) throws ParseException, IOException, QueryNodeException {
+            return this.searchAfter(field, query, order, pointsConfig, null, limit, threshold, partial);
+        }
+
+        // afterより後のlimit件を返す(afterの位置は並び順の値で決まり、docは使わない)
+        // ヒット数はafterより前も含めて数える
+        public TopFieldDocs searchAfter(String field, String query, Sort order, Map<String, PointsConfig> pointsConfig, FieldDoc after, int limit, int threshold, Partial partial) throws ParseException, IOException, QueryNodeException {
+            return this.search(this.parse(field, query, pointsConfig), order, after, limit, threshold, partial);
+        }
+
+        // 全件の検索結果(同じ条件・同じreaderの世代の結果はキャッシュを使う)
+        // idは並び順の上位limit件まで集め、ヒット数は全件を数える
+        public ResultCache.Hits hits(String field, String query, Sort order, Map<String, PointsConfig> pointsConfig, int limit) throws ParseException, IOException, QueryNodeException {
+            Query parsed = this.parse(field, query, pointsConfig);
+            List<IndexReader.CacheKey> keys = new ArrayList<>();
+            for (DirectoryReader reader: this.readers) keys.add(reader.getReaderCacheHelper().getKey());
+            return this.cache.get(new ResultCache.Key(parsed, order, limit, keys), this.readers, () -> {
+                Partial partial = new Partial();
+                TopFieldDocs hits = this.search(parsed, order, null, limit, Integer.MAX_VALUE, partial);
+                int[] ids = new int[hits.scoreDocs.length];
+                for (int i = 0; i < ids.length; i++) ids[i] = hits.scoreDocs[i].doc;
+                return new ResultCache.Hits(ids, hits.totalHits.value(), partial.isPartial());
+            });
+        }
+
+        // StandardQueryParserはスレッドセーフではないため呼び出し毎に生成する
+        private Query parse(String field, String query, Map<String, PointsConfig> pointsConfig) throws QueryNodeException {
             StandardQueryParser parser = new StandardQueryParser(this.analyzer);
             parser.setPointsConfigMap(pointsConfig);
-            synchronized (analyzerLock) {
-                return this.searcher.search(parser.parse(query, field), Integer.MAX_VALUE, order);
+            return parser.parse(query, field);
+        }
+
+        private TopFieldDocs search(Query parsed, Sort order, FieldDoc after, int limit, int threshold, Partial partial) throws IOException {
+            List<TopFieldDocs> results = this.forEachLeaf(this.leaves(parsed), partial, (context, searcher) -> {
+                int hits = Math.max(1, Math.min(limit, context.reader().maxDoc()));
+                // afterはsort・seqの値で位置を決めるため、セグメント毎にidを変換しない
+                TopFieldDocs leaf = searcher.search(
+                    parsed,
+                    new TopFieldCollectorManager(order, hits, after, threshold)
+                );
+                for (ScoreDoc doc: leaf.scoreDocs) doc.doc += context.docBase;
+                return leaf;
+            });
+            TopFieldDocs[] hits = results.toArray(new TopFieldDocs[0]);
+            for (int i = 0; i < hits.length; i++) {
+                for (ScoreDoc doc: hits[i].scoreDocs) doc.shardIndex = i;
             }
+            return TopDocs.merge(order, limit, hits);
         }
 
-        public Document get(Integer id) throws IOException {
-            StoredFields storedFields = this.searcher.storedFields();
-            return storedFields.document(id);
+        private static interface LeafTask<T> {
+            T call(LeafReaderContext context, IndexSearcher searcher) throws IOException;
         }
 
-        public <BytesRef> Map<BytesRef, Long> groupCount(String field, String query, Map<String, PointsConfig> pointsConfig, String groupField) throws IOException, QueryNodeException {
-            GroupingSearch groupingSearch = new GroupingSearch(groupField);
-            StandardQueryParser parser = new StandardQueryParser(this.analyzer);
-            parser.setPointsConfigMap(pointsConfig);
-            Map<BytesRef, Long> count = new HashMap<>();
-            int offset = 0;
-            int limit = 1024;
-            while (true) {
-                synchronized (analyzerLock) {
-                    TopGroups<BytesRef> result = groupingSearch.search(
-                        this.searcher,
-                        parser.parse(query, field),
-                        offset,
-                        limit
-                    );
-                    if (result.groups.length == 0) break;
-                    offset += limit;
-                    for (GroupDocs<BytesRef> group: result.groups) {
-                        count.put(group.groupValue(), group.totalHits().value());
+        // timestampの範囲に一致しない期間・セグメントを除外する
+        private List<LeafReaderContext> leaves(Query parsed) throws IOException {
+            long[] range = range(parsed);
+            List<LeafReaderContext> leaves = new ArrayList<>();
+            for (LeafReaderContext context: this.reader.leaves()) {
+                if (matches(context, range)) leaves.add(context);
+            }
+            return leaves;
+        }
+
+        // セグメント毎にtaskを並列で実行する(結果はleavesと同じ順)
+        // 時間切れ・キャンセルの場合は各セグメントのその時点までの結果を返す(語句の列挙中などで打ち切ったセグメントの結果は含めない)
+        private <T> List<T> forEachLeaf(List<LeafReaderContext> leaves, Partial partial, LeafTask<T> task) throws IOException {
+            List<Future<T>> futures = new ArrayList<>();
+            for (LeafReaderContext context: leaves) {
+                futures.add(this.executor.submit(() -> {
+                    IndexSearcher searcher = this.searcher(context);
+                    try {
+                        T result = task.call(context, searcher);
+                        if (searcher.timedOut()) partial.partial = true;
+                        return result;
+                    } catch (ExitableDirectoryReader.ExitingReaderException e) {
+                        partial.partial = true;
+                        return null;
                     }
+                }));
+            }
+            List<T> results = new ArrayList<>();
+            try {
+                for (Future<T> future: futures) {
+                    T result = future.get();
+                    if (result != null) results.add(result);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                throw new IOException(e.getCause());
+            } finally {
+                for (Future<T> future: futures) future.cancel(true);
             }
-            return count;
+            return results;
         }
 
-        public Map<LongRange, Long> groupCount(String field, String query, Map<String, PointsConfig> pointsConfig, LongRangeGroupSelector selector) throws IOException, QueryNodeException {
-            GroupingSearch groupingSearch = new GroupingSearch(selector);
-            StandardQueryParser parser = new StandardQueryParser(this.analyzer);
-            parser.setPointsConfigMap(pointsConfig);
-            Map<LongRange, Long> count = new HashMap<>();
-            int offset = 0;
-            int limit = 1024;
-            while (true) {
-                synchronized (analyzerLock) {
-                    TopGroups<LongRange> result = groupingSearch.search(
-                        this.searcher,
-                        parser.parse(query, field),
-                        offset,
-                        limit
-                    );
-                    if (result.groups.length == 0) break;
-                    offset += limit;
-                    for (GroupDocs<LongRange> group: result.groups) {
-                        count.put(group.groupValue(), group.totalHits().value());
-                    }
+        // 時間の上限・キャンセルがある場合は、ドキュメントの収集と語句の列挙を途中で打ち切る
+        private IndexSearcher searcher(LeafReaderContext context) {
+            if (this.timeout == null) return this.queries.newSearcher(context.reader());
+            IndexSearcher searcher = this.queries.newSearcher(new ExitableTermsReader(context.reader(), this.timeout));
+            searcher.setTimeout(this.timeout);
+            return searcher;
+        }
+
+        // 正規表現・ワイルドカード等の語句の展開を打ち切る(収集はIndexSearcher.setTimeoutで打ち切るため、DocValuesは包まない)
+        private static class ExitableTermsReader extends FilterLeafReader {
+
+            private final QueryTimeout timeout;
+
+            private ExitableTermsReader(LeafReader in, QueryTimeout timeout) {
+                super(in);
+                this.timeout = timeout;
+            }
+
+            @Override
+            public Terms terms(String field) throws IOException {
+                Terms terms = super.terms(field);
+                return terms == null ? null : new ExitableDirectoryReader.ExitableTerms(terms, this.timeout);
+            }
+
+            // 包む前と同じキーでSharedQueryCacheを使う
+            @Override
+            public CacheHelper getCoreCacheHelper() {
+                return this.in.getCoreCacheHelper();
+            }
+
+            @Override
+            public CacheHelper getReaderCacheHelper() {
+                return this.in.getReaderCacheHelper();
+            }
+        }
+
+        // 必須条件のtimestampの範囲(範囲指定が無い場合はLong.MIN_VALUE～Long.MAX_VALUE)
+        private static long[] range(Query query) {
+            long[] range = {Long.MIN_VALUE, Long.MAX_VALUE};
+            if (query instanceof BoostQuery boost) return range(boost.getQuery());
+            if (query instanceof ConstantScoreQuery constant) return range(constant.getQuery());
+            if (query instanceof IndexOrDocValuesQuery values) return range(values.getIndexQuery());
+            if (query instanceof PointRangeQuery point && point.getField().equals(LuceneFieldKeys.timestamp.name()) && point.getNumDims() == 1) {
+                range[0] = LongPoint.decodeDimension(point.getLowerPoint(), 0);
+                range[1] = LongPoint.decodeDimension(point.getUpperPoint(), 0);
+            } else if (query instanceof BooleanQuery bool) {
+                for (BooleanClause clause: bool.clauses()) {
+                    if (clause.occur() != Occur.MUST && clause.occur() != Occur.FILTER) continue;
+                    long[] sub = range(clause.query());
+                    range[0] = Math.max(range[0], sub[0]);
+                    range[1] = Math.min(range[1], sub[1]);
                 }
             }
+            return range;
+        }
+
+        // セグメントのtimestampの最小・最大値が範囲と重ならない場合は検索しない
+        private static boolean matches(LeafReaderContext context, long[] range) throws IOException {
+            if (context.reader().numDocs() == 0) return false;
+            if (range[0] == Long.MIN_VALUE && range[1] == Long.MAX_VALUE) return true;
+            if (range[0] > range[1]) return false;
+            PointValues values = context.reader().getPointValues(LuceneFieldKeys.timestamp.name());
+            if (values == null) return false;
+            long min = LongPoint.decodeDimension(values.getMinPackedValue(), 0);
+            long max = LongPoint.decodeDimension(values.getMaxPackedValue(), 0);
+            return max >= range[0] && min <= range[1];
+        }
+
+        public Document get(Integer id) throws IOException {
+            StoredFields storedFields = this.searcher.storedFields();
+            return storedFields.document(id);
+        }
+
+        // idsのドキュメントのfieldsだけを読み込み、idsと同じ順で返す(fieldsがnullの場合は全て)
+        // 保存されたフィールドはブロック毎に圧縮されているため、id順に読み込んで同じブロックを1回だけ展開する
+        public List<Document> get(int[] ids, Set<String> fields) throws IOException {
+            long[] order = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) order[i] = ((long) ids[i] << 32) | i;
+            Arrays.sort(order);
+            Document[] docs = new Document[ids.length];
+            StoredFields storedFields = this.searcher.storedFields();
+            for (long value: order) {
+                DocumentStoredFieldVisitor visitor = fields == null ? new DocumentStoredFieldVisitor() : new DocumentStoredFieldVisitor(fields);
+                storedFields.document((int) (value >>> 32), visitor);
+                docs[(int) value] = visitor.getDocument();
+            }
+            return Arrays.asList(docs);
+        }
+
+        public Map<BytesRef, Long> groupCount(String field, String query, Map<String, PointsConfig> pointsConfig, String groupField) throws IOException, QueryNodeException {
+            return this.groupCount(field, query, pointsConfig, List.of(groupField), new Partial()).get(groupField);
+        }
+
+        // 複数フィールドの値毎の件数を1回の検索で数える
+        public Map<String, Map<BytesRef, Long>> groupCount(String field, String query, Map<String, PointsConfig> pointsConfig, List<String> groupFields, Partial partial) throws IOException, QueryNodeException {
+            Query parsed = this.parse(field, query, pointsConfig);
+            return this.groupCount(parsed, this.leaves(parsed), groupFields, partial);
+        }
+
+        private Map<String, Map<BytesRef, Long>> groupCount(Query parsed, List<LeafReaderContext> leaves, List<String> groupFields, Partial partial) throws IOException {
+            FacetCounter counter = new FacetCounter(groupFields);
+            Map<String, Map<BytesRef, Long>> count = counter.reduce(List.of());
+            for (Map<String, Map<BytesRef, Long>> leaf: this.forEachLeaf(
+                leaves,
+                partial,
+                (context, searcher) -> searcher.search(parsed, counter)
+            )) {
+                FacetCounter.merge(count, leaf);
+            }
             return count;
         }
 
-        public Set<ByteBuffer> getSortedDocValues(String field) throws IOException {
-            return new HashSet<>() {{
-                for (LeafReaderContext context: reader.leaves()) {
-                    // SortedDocValues values = context.reader().getSortedDocValues(field);
-                    SortedDocValues values = DocValues.getSorted(context.reader(), field);
-                    for (int i = 0; i < values.getValueCount(); i++) {
-                        byte[] src = values.lookupOrd(i).bytes;
-                        byte[] dst = new byte[values.lookupOrd(i).length];
-                        for (int j = 0; j < dst.length; j++) dst[j] = src[j];
-                        this.add(ByteBuffer.wrap(dst));
-                    }
-                }
-            }};
+        // timestampをorigin + n * widthから始まるwidth毎の区間で数える
+        // 区間は検索条件の範囲と各セグメントのtimestampの最小・最大値から決め、1回の検索で数える
+        public TimelineCounter.Histogram timeline(String field, String query, Map<String, PointsConfig> pointsConfig, long origin, long width, Partial partial) throws IOException, QueryNodeException {
+            Query parsed = this.parse(field, query, pointsConfig);
+            List<LeafReaderContext> leaves = this.leaves(parsed);
+            long[] buckets = this.buckets(parsed, leaves, origin, width);
+            if (buckets == null) return new TimelineCounter.Histogram(origin, width, new long[0]);
+            TimelineCounter counter = new TimelineCounter(buckets[0], width, (int) buckets[1]);
+            return counter.reduce(this.forEachLeaf(
+                leaves,
+                partial,
+                (context, searcher) -> searcher.search(parsed, counter.leaf())
+            ));
+        }
+
+        // timelineと同じ区間×groupFieldの値で数える(件数の多い上位top件以外の値はまとめる)
+        // 上位top件の値を先にgroupCountで決めてから、その値だけを区間毎に数える
+        public TimelineFacetCounter.Matrix timeline(String field, String query, Map<String, PointsConfig> pointsConfig, long origin, long width, String groupField, int top, Partial partial) throws IOException, QueryNodeException {
+            Query parsed = this.parse(field, query, pointsConfig);
+            List<LeafReaderContext> leaves = this.leaves(parsed);
+            long[] buckets = this.buckets(parsed, leaves, origin, width);
+            if (buckets == null) return new TimelineFacetCounter.Matrix(origin, width, List.of(), new long[0][], new long[0]);
+            if ((top + 1L) * buckets[1] > MAX_BUCKETS) throw new IllegalArgumentException("too many buckets: " + (top + 1L) * buckets[1]);
+            List<BytesRef> values = TimelineFacetCounter.top(this.groupCount(parsed, leaves, List.of(groupField), partial).get(groupField), top);
+            TimelineFacetCounter counter = new TimelineFacetCounter(buckets[0], width, (int) buckets[1], groupField, values);
+            return counter.reduce(this.forEachLeaf(
+                leaves,
+                partial,
+                (context, searcher) -> searcher.search(parsed, counter.leaf())
+            ));
+        }
+
+        // 最初の区間の開始時刻と区間数(一致する可能性のあるセグメントが無い場合はnull)
+        private long[] buckets(Query parsed, List<LeafReaderContext> leaves, long origin, long width) throws IOException {
+            long[] range = range(parsed);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (LeafReaderContext context: leaves) {
+                PointValues values = context.reader().getPointValues(LuceneFieldKeys.timestamp.name());
+                if (values == null) continue;
+                min = Math.min(min, LongPoint.decodeDimension(values.getMinPackedValue(), 0));
+                max = Math.max(max, LongPoint.decodeDimension(values.getMaxPackedValue(), 0));
+            }
+            min = Math.max(min, range[0]);
+            max = Math.min(max, range[1]);
+            if (min > max) return null;
+            long start = origin + Math.floorDiv(min - origin, width) * width;
+            long size = (max - start) / width + 1;
+            if (size > MAX_BUCKETS) throw new IllegalArgumentException("too many buckets: " + size);
+            return new long[] {start, size};
+        }
+
+        // fieldの値をprefixから値の順にlimit件返す(countsがtrueの場合は値毎のドキュメント数も返す)
+        public Map<BytesRef, Long> termValues(String field, BytesRef prefix, int limit, boolean counts) throws IOException {
+            List<IndexReader.CacheKey> keys = new ArrayList<>();
+            for (DirectoryReader reader: this.readers) keys.add(reader.getReaderCacheHelper().getKey());
+            return this.terms.get(this.reader, keys, field, prefix, limit, counts);
         }
 
         @Override
         public void close() throws IOException {
             this.reader.close();
+            for (DirectoryReader reader: this.readers) reader.decRef();
         }
     }
 
@@ -152,60 +408,152 @@ public class LuceneManager implements Closeable {
     }
 
     public LuceneManager(String path, List<String> tokenizeFields) throws IOException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ClassNotFoundException {
-        this.dir = FSDirectory.open(Paths.get(path));
+        this(path, tokenizeFields, null);
+    }
+
+    // spoolを指定した場合は前回commitされなかったログを再登録してから受信を開始する
+    public LuceneManager(String path, List<String> tokenizeFields, WriteAheadSpool spool) throws IOException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ClassNotFoundException {
+        this(path, tokenizeFields, spool, false);
+    }
+
+    // readOnlyの場合は検索だけを行う(書き込み・保持期限による削除・readerの更新をしない、マイグレーションの移行元用)
+    public LuceneManager(String path, List<String> tokenizeFields, WriteAheadSpool spool, boolean readOnly) throws IOException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ClassNotFoundException {
+        this.spool = spool;
 
         String clazz = Settings.getLuceneAnalyzer();
         this.writerAnalyzer = (Analyzer) Class.forName(clazz).getDeclaredConstructor().newInstance();
-        this.readerAnalyzer = new AnalyzerWrapper(new ReuseStrategy() {
-            private Map<String, TokenStreamComponents> cache = new HashMap<>();
-            @Override
-            public TokenStreamComponents getReusableComponents(Analyzer analyzer, String fieldName) {
-                return this.cache.containsKey(fieldName) ? this.cache.get(fieldName) : null;
-            }
+        // 分割するフィールド以外は空白区切り(各アナライザはスレッド毎にTokenStreamを再利用するため検索毎のロックは不要)
+        // TODO: 設定で指定可能にする
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        for (String field: tokenizeFields) fieldAnalyzers.put(field, this.writerAnalyzer);
+        this.readerAnalyzer = new PerFieldAnalyzerWrapper(new WhitespaceAnalyzer(), fieldAnalyzers);
+
+        this.partitions = new IndexPartitions(Paths.get(path), this.writerAnalyzer, readOnly);
+        AtomicInteger count = new AtomicInteger();
+        this.searcher = Executors.newFixedThreadPool(Settings.getLuceneSearchThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "LuceneSearcher-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (readOnly) return;
+        // 保持期限を過ぎた期間は受信・検索を始める前に削除する
+        this.partitions.maintain();
+        this.batcher = new IndexBatcher(this.partitions, this.spool);
+        this.batcher.start();
+        long interval = Settings.getLuceneRefreshInterval();
+        this.refresher.schedule(new TimerTask() {
             @Override
-            public void setReusableComponents(Analyzer analyzer, String fieldName, TokenStreamComponents components) {
-                this.cache.put(fieldName, components);
+            public void run() {
+                try {
+                    partitions.refresh();
+                } catch (Exception e) {
+                    logger.atError().log("SearcherManager refresh failed.", e);
+                }
             }
-        }) {
+        }, interval, interval);
+        this.refresher.schedule(new TimerTask() {
             @Override
-            protected Analyzer getWrappedAnalyzer(String fieldName) {
-                if (tokenizeFields.contains(fieldName)) {
-                    return writerAnalyzer;
-                } else {
-                    // TODO: 設定で指定可能にする
-                    return new WhitespaceAnalyzer();
+            public void run() {
+                try {
+                    partitions.maintain();
+                } catch (Exception e) {
+                    logger.atError().log("IndexPartitions maintain failed.", e);
                 }
             }
-        };
-
-        IndexWriterConfig iwc = new IndexWriterConfig(this.writerAnalyzer);
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(dir, iwc);
+        }, MAINTAIN_INTERVAL, MAINTAIN_INTERVAL);
     }
 
     public void add(Document doc) throws IOException {
-        this.writer.addDocument(doc);
-        this.writer.flush();
-        this.writer.commit();
+        this.batcher().add(doc);
+    }
+
+    public void add(DocumentTemplate doc) throws IOException {
+        this.batcher().add(doc);
+    }
+
+    private IndexBatcher batcher() throws IOException {
+        if (this.batcher == null) throw new IOException("LuceneManager opened read-only.");
+        return this.batcher;
     }
 
     public void add(Iterable<Document> docs) throws IOException {
-        this.writer.addDocuments(docs);
-        this.writer.flush();
-        this.writer.commit();
+        List<Document> batch = new ArrayList<>();
+        for (Document doc: docs) {
+            batch.add(doc);
+            if (batch.size() >= Settings.getLuceneBatchSize()) {
+                this.partitions.add(batch);
+                batch.clear();
+            }
+        }
+        this.partitions.add(batch);
+        this.partitions.commit(null);
+    }
+
+    // 検索と同じ構文・アナライザでクエリを解析する
+    public Query parse(String field, String query, Map<String, PointsConfig> pointsConfig) throws QueryNodeException {
+        StandardQueryParser parser = new StandardQueryParser(this.readerAnalyzer);
+        parser.setPointsConfigMap(pointsConfig);
+        return parser.parse(query, field);
+    }
+
+    public Analyzer getWriterAnalyzer() {
+        return this.writerAnalyzer;
     }
 
     public LuceneReader getReader() throws IOException {
-        return new LuceneReader(dir.getDirectory().toAbsolutePath().toString(), this.readerAnalyzer);
+        return this.getReader(null);
+    }
+
+    // timeoutを指定した場合は、そのreaderでの検索を時間の上限・キャンセルで打ち切る
+    public LuceneReader getReader(SearchTimeout timeout) throws IOException {
+        return new LuceneReader(this.partitions, this.readerAnalyzer, this.searcher, this.cache, this.terms, this.queries, timeout);
     }
 
     public Path getDirectory() {
-        return this.dir == null ? null : this.dir.getDirectory();
+        return this.partitions == null ? null : this.partitions.getDirectory();
+    }
+
+    public Map<String, Object> getIngestStats() {
+        return this.batcher == null ? null : this.batcher.getStats();
+    }
+
+    public Map<String, Object> getPartitionStats() throws IOException {
+        return this.partitions.getStats();
+    }
+
+    // 索引全体・期間毎・セグメント毎の件数、サイズ、timestampの最小・最大値
+    public Map<String, Object> getIndexStats() throws IOException {
+        List<DirectoryReader> readers = this.partitions.acquire();
+        try {
+            return this.stats.get(this.partitions.getDirectory(), readers);
+        } finally {
+            for (DirectoryReader reader: readers) reader.decRef();
+        }
+    }
+
+    public Map<String, Object> getCacheStats() {
+        return this.cache.getStats();
+    }
+
+    public Map<String, Object> getQueryCacheStats() {
+        return this.queries.getStats();
+    }
+
+    public WriteAheadSpool getSpool() {
+        return this.spool;
+    }
+
+    public Map<String, Object> getSpoolStats() {
+        return this.spool == null ? null : this.spool.getStats();
     }
 
     @Override
     public void close() throws IOException {
-        this.writer.close();
+        this.refresher.cancel();
+        if (this.batcher != null) this.batcher.close();
+        this.searcher.shutdown();
+        this.partitions.close();
+        if (this.spool != null) this.spool.close();
     }
 
     // TODO: 頻出単語を取得
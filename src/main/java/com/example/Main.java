@@ -30,19 +30,21 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
@@ -54,14 +56,10 @@ import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
-import org.apache.lucene.search.LongValuesSource;
-import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.SortField;
-import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.grouping.LongRange;
-import org.apache.lucene.search.grouping.LongRangeFactory;
-import org.apache.lucene.search.grouping.LongRangeGroupSelector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,11 +75,13 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.UploadedFile;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsContext;
 
 /**
  * Hello world!
@@ -90,16 +90,20 @@ public class Main
 {
     private static Logger logger = LoggerFactory.getLogger(Main.class);
 
+    // ドキュメントをまとめて読み込む件数(id順に並べ替えて読み込む)
+    private static final int FETCH_SIZE = 1024;
+
     private static ObjectMapper mapper = new ObjectMapper();
     private static LuceneManager lucene;
     private static SyslogReceiver watcher;
     private static Thread worker;
-    private static Map<Integer, WsConnectContext> realtimeConnections = new HashMap<>();
-    private static Map<Integer, WsConnectContext> jobConnections = new HashMap<>();
+    private static RealtimeBroadcaster realtime;
+    private static Map<Integer, WsConnectContext> jobConnections = new ConcurrentHashMap<>();
     private static String script = Settings.getSyslogListener();
-    private static ScriptEngineManager manager = new ScriptEngineManager();
-    private static ScriptEngine engine = manager.getEngineByName("groovy");
+    private static ScriptListener listener;
     private static Map<Integer, ImportExportJob> jobs = new HashMap<>();
+    // 実行中の検索(X-Request-Id毎、キャンセル用)
+    private static Map<String, SearchTimeout> searches = new ConcurrentHashMap<>();
 
     public static enum JobType {
         Export,
@@ -166,8 +170,14 @@ public class Main
     public static class SearchResult {
         public String query;
         public long total = 0;
-        public List<Integer> ids = new ArrayList<>();
+        // totalが正確な件数か(falseの場合は下限値)
+        public boolean exact = true;
+        // 時間切れ・キャンセルで途中までの結果か
+        public boolean partial = false;
+        public int[] ids = new int[0];
         public long ms = 0;
+        // 次のページを取得するカーソル(最後のページの場合はnull)
+        public String cursor;
     }
 
     private static void notifyAll(Map<Integer, WsConnectContext> connections, Map<String, Object> data) throws JsonProcessingException {
@@ -185,22 +195,6 @@ public class Main
         }
     }
 
-    private static void notifyAll(Map<Integer, WsConnectContext> connections, Function<WsConnectContext, Map<String, String>> generator) throws JsonProcessingException {
-        List<Integer> deleteTargets = new ArrayList<>();
-        for (Map.Entry<Integer, WsConnectContext> connection: connections.entrySet()) {
-            if (!connection.getValue().session.isOpen()) {
-                deleteTargets.add(connection.getValue().session.hashCode());
-            } else {
-                Map<String, String> data = generator.apply(connection.getValue());
-                String json = mapper.writeValueAsString(data);
-                connection.getValue().send(json);
-            }
-        }
-        for (Integer target: deleteTargets) {
-            connections.remove(target);
-        }
-    }
-
     static {
         try {
             lucene = new LuceneManager(
@@ -214,33 +208,17 @@ public class Main
                     );
                 }).map(
                     field -> field.name()
-                ).toList()
+                ).toList(),
+                Settings.getLuceneSpool().isEmpty() ? null : new WriteAheadSpool(Settings.getLuceneSpool(), Settings.getLuceneSpoolSize())
             );
             watcher = new SyslogReceiver(Settings.getSyslogPort(), lucene);
-            watcher.addEventListener(doc -> {
-                try {
-                    notifyAll(realtimeConnections, ctx -> 
-                        SyslogReceiver.toMap(
-                            doc,
-                            getZoneOffset(ctx.cookieMap())
-                        )
-                    );
-                } catch (Exception e) {
-                    logger.atError().log("ws send error.", e);
-                }
-            });
-            watcher.addEventListener(doc -> {
-                if (script != null && !script.trim().isEmpty()) {
-                    try (InputStream input = new FileInputStream(script);) {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                        String source = reader.lines().collect(Collectors.joining("\n"));
-                        engine.put("doc", doc);
-                        engine.eval(source);
-                    } catch (Exception e) {
-                        logger.atError().log("script eval error.", e);
-                    }
-                }
-            });
+            realtime = new RealtimeBroadcaster(lucene);
+            realtime.start();
+            watcher.addEventListener(realtime);
+            if (script != null && !script.trim().isEmpty()) {
+                listener = new ScriptListener(script);
+                watcher.addEventListener(listener);
+            }
             worker = new Thread(watcher);
             worker.start();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -250,6 +228,17 @@ public class Main
                 } catch (InterruptedException e) {
                     logger.atError().log("SyslogReceiver stop failed.", e);
                 }
+                try {
+                    realtime.close();
+                    if (listener != null) listener.close();
+                } catch (IOException e) {
+                    logger.atError().log("listener close failed.", e);
+                }
+                try {
+                    lucene.close();
+                } catch (IOException e) {
+                    logger.atError().log("LuceneManager close failed.", e);
+                }
             }));
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -272,9 +261,15 @@ public class Main
                 staticFiles.location = Location.valueOf(System.getProperty("web.location", "CLASSPATH"));
             });
         }).get(
-            "/api/search", ctx -> ctx.json(search(ctx.queryParam("query"), getZoneOffset(ctx.cookieMap())))
+            "/api/search", Main::search
+        ).delete(
+            "/api/search", Main::cancelSearch
         ).get(
             "/api/config", Main::config
+        ).get(
+            "/api/ingest", Main::ingest
+        ).get(
+            "/api/stats", Main::stats
         ).get(
             "/api/documents", Main::documents
         ).get(
@@ -284,17 +279,19 @@ public class Main
         ).get(
             "/api/group/count/timeline", Main::timelineCount
         ).post(
-            "/api/export/sqlite", Main::exportSqlite  // TODO: キャンセル
+            "/api/export/sqlite", Main::exportSqlite
         ).post(
-            "/api/export/tsv", Main::exportTsv  // TODO: キャンセル
+            "/api/export/tsv", Main::exportTsv
         ).get(
             "/api/download", Main::download
         ).post(
-            "/api/import/tsv", Main::importTsv  // TODO: キャンセル
+            "/api/import/tsv", Main::importTsv
         ).get(
             "/api/job", Main::getJobs
         ).delete(
             "/api/job", Main::removeJob
+        ).post(
+            "/api/job/cancel", Main::cancelJob
         ).before(
             ctx -> ctx.attribute("start", new Date().getTime())
         ).after(
@@ -304,21 +301,29 @@ public class Main
                 ctx.req().getRemotePort(),
                 ctx.fullUrl()
             )
-        ).exception(Exception.class, (e, ctx) -> {
+        ).after(ctx -> {
+            // 終了した検索はキャンセルの対象から外す
+            if (ctx.attribute("timeout") != null) searches.remove(ctx.header("X-Request-Id"), ctx.attribute("timeout"));
+        }).exception(Exception.class, (e, ctx) -> {
             logger.error(ctx.fullUrl(), e);
             ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(e);
         }).ws("/ws/realtime", ws -> {
             ws.onConnect(ctx -> {
                 logger.atInfo().addKeyValue("addr", ctx.host()).log("realtime ws connected.");
                 ctx.enableAutomaticPings();
-                realtimeConnections.put(ctx.session.hashCode(), ctx);
+                realtime.add(ctx, getZoneOffset(ctx.cookieMap()));
+                subscribe(ctx, ctx.queryParam("query"));
+            });
+            ws.onMessage(ctx -> {
+                // 検索条件が変更された場合は購読条件を差し替える
+                subscribe(ctx, ctx.message());
             });
             ws.onClose(ctx -> {
                 logger.atInfo().addKeyValue("addr", ctx.host()).log("realtime ws closed.");
-                realtimeConnections.remove(ctx.session.hashCode());
+                realtime.remove(ctx);
             });
             ws.onError(ctx -> {
-                logger.atError().addKeyValue("addr", ctx.host()).log("realtime ws error.");
+                logger.atError().addKeyValue("addr", ctx.host()).log("realtime ws error.", ctx.error());
             });
         }).ws("/ws/job", ws -> {
             ws.onConnect(ctx -> {
@@ -337,29 +342,145 @@ public class Main
         server.start(Settings.getWebPort());
     }
 
-    private static SearchResult search(String query, ZoneOffset offset) throws ParseException, IOException, QueryNodeException {
+    // 条件が不正な場合はエラーを通知して前回の条件のままにする
+    private static void subscribe(WsContext ctx, String query) {
+        try {
+            realtime.subscribe(ctx, query);
+        } catch (QueryNodeException e) {
+            ctx.send(Map.of("error", e.getMessage()));
+        }
+    }
+
+    private static void search(Context ctx) throws ParseException, IOException, QueryNodeException {
+        try (LuceneReader reader = lucene.getReader(getTimeout(ctx));) {
+            SearchResult result = search(reader, ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()));
+            setPartial(ctx, result.partial);
+            ctx.json(result);
+        }
+    }
+
+    // リクエスト毎の検索の時間の上限(X-Request-Idを指定した場合はDELETE /api/search?id=でキャンセルできる)
+    private static SearchTimeout getTimeout(Context ctx) {
+        SearchTimeout timeout = new SearchTimeout();
+        String id = ctx.header("X-Request-Id");
+        if (id != null) {
+            searches.put(id, timeout);
+            ctx.attribute("timeout", timeout);
+        }
+        return timeout;
+    }
+
+    // ブラウザで中断したリクエストの検索を打ち切る
+    private static void cancelSearch(Context ctx) {
+        SearchTimeout timeout = searches.get(ctx.queryParam("id"));
+        if (timeout != null) timeout.cancel();
+    }
+
+    // 時間切れ・キャンセルで途中までの結果の場合はヘッダで通知する
+    private static void setPartial(Context ctx, boolean partial) {
+        if (partial) ctx.header("X-Partial", "true");
+    }
+
+    // 1回の検索で集めるidの上限(lucene.search.maxが0の場合は無制限)
+    private static int getSearchMax() {
+        return Settings.getLuceneSearchMax() > 0 ? Settings.getLuceneSearchMax() : Integer.MAX_VALUE;
+    }
+
+    // 検索結果のidは検索したreaderでのみ有効なため、ドキュメントの取得には同じreaderを使用すること
+    // 全件の結果はreaderが同じ間キャッシュされる(ページ移動・集計で再検索しない)、idはlucene.search.max件まで
+    private static SearchResult search(LuceneReader reader, String query, ZoneOffset offset) throws ParseException, IOException, QueryNodeException {
         long start = new Date().getTime();
         SearchResult result = new SearchResult();
         result.query = query;
-        try (LuceneReader reader = lucene.getReader();) {
+        try {
+            ResultCache.Hits hits = reader.hits(
+                LuceneFieldKeys.message.name(),
+                result.query,
+                IndexPartitions.NEWEST,
+                LuceneFieldKeys.getPointsConfig(offset),
+                getSearchMax()
+            );
+            result.total = hits.total();
+            result.partial = hits.partial();
+            result.exact = !result.partial;
+            result.ids = hits.ids();
+            long end = new Date().getTime();
+            result.ms = end - start;
+            return result;
+        } catch (IndexNotFoundException e) {
+            logger.atWarn().log("index not found.");
+            return new SearchResult();
+        }
+    }
+
+    // 新しい順の上位limit件だけを取得する(thresholdを超えるヒット数は数えない)
+    private static SearchResult search(LuceneReader reader, String query, ZoneOffset offset, int limit, int threshold) throws ParseException, IOException, QueryNodeException {
+        long start = new Date().getTime();
+        SearchResult result = new SearchResult();
+        result.query = query;
+        LuceneReader.Partial partial = new LuceneReader.Partial();
+        try {
             TopDocs hits = reader.search(
                 LuceneFieldKeys.message.name(),
                 result.query,
-                new Sort(new SortedNumericSortField(
-                    LuceneFieldKeys.sort.name(),
-                    SortField.Type.LONG,
-                    true
-                )),
-                LuceneFieldKeys.getPointsConfig(offset)
+                IndexPartitions.NEWEST,
+                LuceneFieldKeys.getPointsConfig(offset),
+                limit,
+                threshold,
+                partial
             );
             result.total = hits.totalHits.value();
-            result.ids = Arrays.asList(
-                hits.scoreDocs
-            ).stream().map(
-                hit -> hit.doc
-            ).collect(
-                Collectors.toList()
+            result.partial = partial.isPartial();
+            result.exact = hits.totalHits.relation() == TotalHits.Relation.EQUAL_TO && !result.partial;
+            result.ids = new int[hits.scoreDocs.length];
+            for (int i = 0; i < result.ids.length; i++) result.ids[i] = hits.scoreDocs[i].doc;
+            long end = new Date().getTime();
+            result.ms = end - start;
+            return result;
+        } catch (IndexNotFoundException e) {
+            logger.atWarn().log("index not found.");
+            return new SearchResult();
+        }
+    }
+
+    // カーソルは並び順の値(sortとseq)を":"で繋いだ文字列(seqは一意のため、refresh・マージでidが変わっても同じ位置になる)
+    private static FieldDoc cursor(String cursor) {
+        String[] values = cursor.split(":", -1);
+        try {
+            if (values.length != 2) throw new NumberFormatException();
+            // idは使わない(同じsort・seqのドキュメントは無い)
+            return new FieldDoc(Integer.MAX_VALUE, Float.NaN, new Object[] {Long.valueOf(values[0]), Long.valueOf(values[1])});
+        } catch (NumberFormatException e) {
+            throw new BadRequestResponse("illegal cursor: " + cursor);
+        }
+    }
+
+    private static SearchResult search(LuceneReader reader, String query, ZoneOffset offset, String cursor, int rows, int threshold) throws ParseException, IOException, QueryNodeException {
+        long start = new Date().getTime();
+        SearchResult result = new SearchResult();
+        result.query = query;
+        FieldDoc after = cursor != null && !cursor.isEmpty() ? cursor(cursor) : null;
+        LuceneReader.Partial partial = new LuceneReader.Partial();
+        try {
+            TopFieldDocs hits = reader.searchAfter(
+                LuceneFieldKeys.message.name(),
+                result.query,
+                IndexPartitions.NEWEST,
+                LuceneFieldKeys.getPointsConfig(offset),
+                after,
+                rows,
+                threshold,
+                partial
             );
+            result.total = hits.totalHits.value();
+            result.partial = partial.isPartial();
+            result.exact = hits.totalHits.relation() == TotalHits.Relation.EQUAL_TO && !result.partial;
+            result.ids = new int[hits.scoreDocs.length];
+            for (int i = 0; i < result.ids.length; i++) result.ids[i] = hits.scoreDocs[i].doc;
+            if (hits.scoreDocs.length == rows) {
+                FieldDoc last = (FieldDoc) hits.scoreDocs[rows - 1];
+                result.cursor = last.fields[0] + ":" + last.fields[1];
+            }
             long end = new Date().getTime();
             result.ms = end - start;
             return result;
@@ -369,34 +490,55 @@ public class Main
         }
     }
 
+    private static void ingest(Context ctx) throws IOException {
+        ctx.json(new HashMap<>() {{
+            this.put("index", lucene.getIngestStats());
+            this.put("partitions", lucene.getPartitionStats());
+            this.put("cache", lucene.getCacheStats());
+            this.put("queryCache", lucene.getQueryCacheStats());
+            if (lucene.getSpoolStats() != null) this.put("spool", lucene.getSpoolStats());
+            if (listener != null) this.put("listener", listener.getStats());
+            this.put("realtime", realtime.getStats());
+            this.put("buffer", watcher.getBufferStats());
+            this.put("sources", watcher.getSourceStats());
+            if (watcher.getTcpStats() != null) this.put("tcp", watcher.getTcpStats());
+        }});
+    }
+
+    // fields(カンマ区切り)で指定した返すフィールド(指定が無い場合はnullで全て、datetime・idは常に返す)
+    private static Set<String> getFields(Context ctx) {
+        if (ctx.queryParam("fields") == null || ctx.queryParam("fields").isBlank()) return null;
+        Set<String> fields = new HashSet<>();
+        for (String field: ctx.queryParam("fields").split(",")) {
+            if (field.isBlank() || field.trim().equals("datetime") || field.trim().equals("id")) continue;
+            fields.add(LuceneFieldKeys.valueOf(field.trim()).name());
+        }
+        return fields;
+    }
+
+    // 読み込むフィールド(datetimeを求めるためtimestampを含める)
+    private static Set<String> getStoredFields(Set<String> fields) {
+        if (fields == null) return null;
+        Set<String> stored = new HashSet<>(fields);
+        stored.add(LuceneFieldKeys.timestamp.name());
+        return stored;
+    }
+
+    private static void stats(Context ctx) throws IOException {
+        ctx.json(lucene.getIndexStats());
+    }
+
     private static void config(Context ctx) throws ParseException, IOException, QueryNodeException {
         Map<String, Object> result = new HashMap<>() {{
             this.put("settings", Settings.get());
             this.put("facility", Arrays.asList(Facility.values()).stream().map(item -> item.name()).toList());
             this.put("severity", Arrays.asList(Severity.values()).stream().map(item -> item.name()).toList());
             this.put("day", new HashMap<>() {{
-                try (LuceneReader reader = lucene.getReader();) {
-                    TopDocs hits = reader.search(
-                        LuceneFieldKeys.message.name(),
-                        "*:*",
-                        new Sort(new SortedNumericSortField(
-                            LuceneFieldKeys.sort.name(),
-                            SortField.Type.LONG,
-                            false
-                        )),
-                        LuceneFieldKeys.getPointsConfig(getZoneOffset(ctx.cookieMap()))
-                    );
-                    long now = new Date().getTime();
-                    if (hits.scoreDocs.length > 0) {
-                        this.put("min", Long.valueOf(reader.get(hits.scoreDocs[0].doc).get(LuceneFieldKeys.timestamp.name())));
-                        this.put("max", Long.valueOf(reader.get(hits.scoreDocs[hits.scoreDocs.length - 1].doc).get(LuceneFieldKeys.timestamp.name())));
-                    } else {
-                        this.put("min", now);
-                        this.put("max", now);
-                    }
-                } catch (IndexNotFoundException e) {
-                    logger.warn(e.getMessage(), e);
-                }
+                // 索引の統計(セグメントのtimestampの最小・最大値)から求める
+                Map<String, Object> stats = lucene.getIndexStats();
+                long now = new Date().getTime();
+                this.put("min", stats.get("min") != null ? stats.get("min") : now);
+                this.put("max", stats.get("max") != null ? stats.get("max") : now);
             }});
             Locale locale = Locale.of(ctx.header("accept-language").split(",")[0]);
             this.put("monthNames", Arrays.asList(
@@ -431,31 +573,60 @@ public class Main
         ctx.json(result);
     }
 
+    // ページの位置(lastまたはrows)はlucene.search.maxまで(それより後はカーソルで順に移動する)
     private static void documents(Context ctx) throws ParseException, IOException, QueryNodeException {
+        LuceneReader reader = lucene.getReader(getTimeout(ctx));
         try {
-            SearchResult hits = search(ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()));
-            Integer first = ctx.queryParam("first") != null ? Integer.valueOf(ctx.queryParam("first")) : 0;
-            Integer last = ctx.queryParam("last") != null ? Integer.valueOf(ctx.queryParam("last")) : hits.ids.size();
-            List<Integer> ids = hits.ids.subList(
-                first,
-                last > hits.ids.size()
-                    ? hits.ids.size()
-                    : last
-            );
+            SearchResult hits;
+            int[] ids;
+            if (ctx.queryParam("rows") != null) {
+                // カーソル(前のページの最後のログ)の次からrows件だけを検索する
+                int rows = Integer.valueOf(ctx.queryParam("rows"));
+                if (rows > getSearchMax()) throw new IllegalArgumentException("rows exceeds lucene.search.max: " + rows);
+                int threshold = Settings.getLuceneSearchTotal() > 0 ? Math.max(Settings.getLuceneSearchTotal(), rows) : Integer.MAX_VALUE;
+                hits = search(reader, ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()), ctx.queryParam("cursor"), rows, threshold);
+                ids = hits.ids;
+            } else {
+                Integer first = ctx.queryParam("first") != null ? Integer.valueOf(ctx.queryParam("first")) : 0;
+                Integer limit = ctx.queryParam("last") != null ? Integer.valueOf(ctx.queryParam("last")) : getSearchMax();
+                if (limit > getSearchMax()) throw new IllegalArgumentException("last exceeds lucene.search.max: " + limit);
+                if (Settings.getLuceneSearchTotal() > 0) {
+                    // 表示するページまでを検索する(ヒット数はlucene.search.totalまで数える)
+                    int threshold = Math.max(Settings.getLuceneSearchTotal(), limit);
+                    hits = search(reader, ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()), limit, threshold);
+                } else {
+                    // ヒット数を正確に数える場合は全件を検索する(キャッシュされるためページ移動では再検索しない)
+                    hits = search(reader, ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()));
+                }
+                ids = Arrays.copyOfRange(
+                    hits.ids,
+                    Math.min(first, hits.ids.length),
+                    Math.min(limit, hits.ids.length)
+                );
+            }
+            Set<String> fields = getFields(ctx);
             PipedInputStream pin = new PipedInputStream();
             GZIPOutputStream pout = new GZIPOutputStream(new PipedOutputStream(pin));
             new Thread(() -> {
-                try (JsonGenerator json = new JsonFactory().createGenerator(pout);) {
+                try (
+                    reader;
+                    JsonGenerator json = new JsonFactory().createGenerator(pout);
+                ) {
                     json.writeStartObject();
                     json.writeNumberField("total", hits.total);
+                    json.writeBooleanField("exact", hits.exact);
+                    json.writeBooleanField("partial", hits.partial);
+                    json.writeStringField("cursor", hits.cursor);
                     json.writeNumberField("ms", hits.ms);
                     json.writeFieldName("docs");
                     json.writeStartArray();
-                    try (LuceneReader reader = lucene.getReader();) {
-                        for (int id: ids) {
-                            Map<String, String> doc = SyslogReceiver.toMap(reader.get(id), getZoneOffset(ctx.cookieMap()));
+                    for (int from = 0; from < ids.length; from += FETCH_SIZE) {
+                        int[] chunk = Arrays.copyOfRange(ids, from, Math.min(from + FETCH_SIZE, ids.length));
+                        List<Document> docs = reader.get(chunk, getStoredFields(fields));
+                        for (int i = 0; i < chunk.length; i++) {
+                            Map<String, String> doc = SyslogReceiver.toMap(docs.get(i), getZoneOffset(ctx.cookieMap()), fields);
                             json.writeStartObject();
-                            json.writeNumberField("id", id);
+                            json.writeNumberField("id", chunk[i]);
                             for (Entry<String, String> entry: doc.entrySet()) {
                                 json.writeStringField(entry.getKey(), entry.getValue());
                             }
@@ -470,6 +641,7 @@ public class Main
                     throw new RuntimeException(e);
                 }
             }).start();
+            setPartial(ctx, hits.partial);
             ctx.contentType(
                 "application/json"
             ).header(
@@ -477,64 +649,148 @@ public class Main
             ).result(
                 pin
             );
-        } catch (IndexNotFoundException e) {
-            logger.atWarn().log("index not found.");
+        } catch (Exception e) {
+            reader.close();
+            throw e;
         }
     }
 
+    // prefix: 前方一致、limit: 件数の上限、counts: trueの場合は値毎のドキュメント数も返す
     private static void fieldValues(Context ctx) throws IOException {
-        ctx.json(new ArrayList<>() {{
-            try (LuceneReader reader = lucene.getReader();) {
-                reader.getSortedDocValues(ctx.pathParam("field"))
-                    .stream()
-                    .map(value -> new String(value.array()))
-                    .sorted()
-                    .forEach(host -> this.add(host));
-            } catch (IndexNotFoundException e) {
-                logger.warn(e.getMessage(), e);
+        LuceneFieldKeys field = LuceneFieldKeys.valueOf(ctx.pathParam("field"));
+        String prefix = ctx.queryParam("prefix") != null ? ctx.queryParam("prefix") : "";
+        int limit = ctx.queryParam("limit") != null ? Integer.valueOf(ctx.queryParam("limit")) : Integer.MAX_VALUE;
+        boolean counts = Boolean.valueOf(ctx.queryParam("counts"));
+        // 数値のフィールドは値がバイト列のため、全件を変換してから前方一致で絞り込む
+        boolean numeric = IntPoint.class.equals(field.getFieldClass()) || LongPoint.class.equals(field.getFieldClass());
+        List<Object> result = new ArrayList<>();
+        try (LuceneReader reader = lucene.getReader();) {
+            Map<BytesRef, Long> values = reader.termValues(
+                field.name(),
+                new BytesRef(numeric ? "" : prefix),
+                numeric ? Integer.MAX_VALUE : limit,
+                counts
+            );
+            for (Entry<BytesRef, Long> entry: values.entrySet()) {
+                if (result.size() >= limit) break;
+                Object value = toGroupKey(field, entry.getKey());
+                if (!value.toString().startsWith(prefix)) continue;
+                result.add(counts ? Map.of("value", value, "count", entry.getValue()) : value);
             }
-        }});
+        } catch (IndexNotFoundException e) {
+            logger.warn(e.getMessage(), e);
+        }
+        ctx.json(result);
     }
 
+    // fieldを指定した場合は値毎の件数、fields(カンマ区切り)を指定した場合はフィールド毎の値毎の件数を返す
     private static void groupCount(Context ctx) throws ParseException, IOException, QueryNodeException {
-        try (LuceneReader reader = lucene.getReader();) {
-            LuceneFieldKeys field = LuceneFieldKeys.valueOf(ctx.queryParam("field"));
+        try (LuceneReader reader = lucene.getReader(getTimeout(ctx));) {
+            List<LuceneFieldKeys> fields = Arrays.asList(
+                (ctx.queryParam("fields") != null ? ctx.queryParam("fields") : ctx.queryParam("field")).split(",")
+            ).stream().map(
+                field -> LuceneFieldKeys.valueOf(field.trim())
+            ).distinct().toList();
             String query = ctx.queryParam("query");
-            Map<BytesRef, Long> result = reader.groupCount(
+            LuceneReader.Partial partial = new LuceneReader.Partial();
+            Map<String, Map<BytesRef, Long>> result = reader.groupCount(
                 LuceneFieldKeys.message.name(),
                 query,
                 LuceneFieldKeys.getPointsConfig(getZoneOffset(ctx.cookieMap())),
-                field.name()
+                fields.stream().map(field -> field.name()).toList(),
+                partial
             );
-            Map<Object, Long> count = new HashMap<>() {{
-                for (Entry<BytesRef, Long> entry: result.entrySet()) {
-                    if (IntPoint.class.equals(field.getFieldClass())) {
-                        this.put(ByteBuffer.wrap(entry.getKey().bytes).getInt(), entry.getValue());
-                    } else if (LongPoint.class.equals(field.getFieldClass())) {
-                        this.put(ByteBuffer.wrap(entry.getKey().bytes).getLong(), entry.getValue());
-                    } else {
-                        this.put(entry.getKey().utf8ToString(), entry.getValue());
-                    }
-                }
-            }};
-            ctx.json(count);
+            Map<String, Map<Object, Long>> count = new HashMap<>();
+            for (LuceneFieldKeys field: fields) {
+                count.put(field.name(), toGroupKeys(field, result.get(field.name())));
+            }
+            setPartial(ctx, partial.isPartial());
+            ctx.json(ctx.queryParam("fields") != null ? count : count.get(fields.get(0).name()));
         } catch (IndexNotFoundException e) {
             logger.atWarn().log("index not found.");
         }
     }
 
+    private static Map<Object, Long> toGroupKeys(LuceneFieldKeys field, Map<BytesRef, Long> result) {
+        return new HashMap<>() {{
+            for (Entry<BytesRef, Long> entry: result.entrySet()) {
+                this.put(toGroupKey(field, entry.getKey()), entry.getValue());
+            }
+        }};
+    }
+
+    // DocValuesの値をフィールドの型の値に変換する
+    private static Object toGroupKey(LuceneFieldKeys field, BytesRef value) {
+        if (IntPoint.class.equals(field.getFieldClass())) {
+            return ByteBuffer.wrap(value.bytes, value.offset, value.length).getInt();
+        } else if (LongPoint.class.equals(field.getFieldClass())) {
+            return ByteBuffer.wrap(value.bytes, value.offset, value.length).getLong();
+        } else {
+            return value.utf8ToString();
+        }
+    }
+
+    // values: 上位の値(件数の多い順)、other: それ以外の値があるか、count: 区間毎の件数
+    private static Map<String, Object> toTimelineMatrix(LuceneFieldKeys field, TimelineFacetCounter.Matrix matrix, Map<String, Map<String, Object>> count) {
+        long other = 0;
+        for (long value: matrix.other()) other += value;
+        Map<String, Object> result = new HashMap<>();
+        result.put("values", matrix.values().stream().map(value -> toGroupKey(field, value)).toList());
+        result.put("other", other > 0);
+        result.put("count", count);
+        return result;
+    }
+
+    // fieldを指定した場合は区間×fieldの値で数える(件数の多い上位top件の値以外はotherにまとめる)
     private static void timelineCount(Context ctx) throws ParseException, IOException, QueryNodeException {
-        try (LuceneReader reader = lucene.getReader();) {
+        try (LuceneReader reader = lucene.getReader(getTimeout(ctx));) {
             String query = ctx.queryParam("query");
             Long span = Long.valueOf(ctx.queryParam("span"));
             ZoneOffset offset = getZoneOffset(ctx.cookieMap());
             ZoneId zone = offset.normalized();
 
-            SearchResult hits = search(query, offset);
+            long width = span * 60 * 1000;
+
+            LuceneFieldKeys field = ctx.queryParam("field") != null ? LuceneFieldKeys.valueOf(ctx.queryParam("field")) : null;
+            int top = ctx.queryParam("top") != null ? Integer.valueOf(ctx.queryParam("top")) : 10;
+            if (top < 0) throw new BadRequestResponse("illegal top: " + top);
+
+            // 区間はタイムゾーンの0時から数える
+            LuceneReader.Partial partial = new LuceneReader.Partial();
+            TimelineCounter.Histogram histogram = field == null ? reader.timeline(
+                LuceneFieldKeys.message.name(),
+                query,
+                LuceneFieldKeys.getPointsConfig(offset),
+                -offset.getTotalSeconds() * 1000L,
+                width,
+                partial
+            ) : null;
+            TimelineFacetCounter.Matrix matrix = field != null ? reader.timeline(
+                LuceneFieldKeys.message.name(),
+                query,
+                LuceneFieldKeys.getPointsConfig(offset),
+                -offset.getTotalSeconds() * 1000L,
+                width,
+                field.name(),
+                top,
+                partial
+            ) : null;
+            setPartial(ctx, partial.isPartial());
+            long start = histogram != null ? histogram.start() : matrix.start();
+            long[] counts = histogram != null ? histogram.counts() : matrix.other().clone();
+            if (matrix != null) {
+                for (long[] row: matrix.counts()) {
+                    for (int i = 0; i < counts.length; i++) counts[i] += row[i];
+                }
+            }
+            int head = 0;
+            int tail = counts.length - 1;
+            while (head <= tail && counts[head] == 0) head++;
+            while (tail >= head && counts[tail] == 0) tail--;
 
-            if (hits.ids.size() > 0) {
-                long first = LuceneFieldKeys.timestamp.get(reader.get(hits.ids.get(hits.ids.size() - 1)), Long.class);
-                long last = LuceneFieldKeys.timestamp.get(reader.get(hits.ids.get(0)), Long.class);
+            if (head <= tail) {
+                long first = start + head * width;
+                long last = start + tail * width;
 
                 long min = OffsetDateTime
                     .ofInstant(new Date(first).toInstant(), zone)
@@ -555,21 +811,6 @@ public class Main
                     .toInstant()
                     .toEpochMilli();
 
-                long width = span * 60 * 1000;
-
-                LongRangeGroupSelector selector = new LongRangeGroupSelector(
-                    LongValuesSource.fromLongField(LuceneFieldKeys.timestamp.name()),
-                    new LongRangeFactory(min, width, max)
-                );
-
-                // TODO: 2軸でgroupingする方法
-                Map<LongRange, Long> result = reader.groupCount(
-                    LuceneFieldKeys.message.name(),
-                    query,
-                    LuceneFieldKeys.getPointsConfig(offset),
-                    selector
-                );
-
                 DateTimeFormatter format = DateTimeFormatter.ofPattern(
                     span >= 60 * 24
                     ? "yyyy-MM-dd"
@@ -587,48 +828,84 @@ public class Main
                 Map<String, Map<String, Object>> count = new HashMap<>() {{
                     long current = min;
                     do {
+                        long index = (current - start) / width;
+                        boolean counted = current >= start && index < counts.length;
                         Map<String, Object> value = new HashMap<>();
                         value.put("min",   minmaxFormatter.apply(current));
                         value.put("max",   minmaxFormatter.apply(current + width - 1));
-                        value.put("value", 0l);
+                        value.put("value", counted ? counts[(int) index] : 0l);
+                        if (matrix != null) {
+                            // valuesの各値の件数(順序はvaluesと同じ)
+                            List<Long> values = new ArrayList<>();
+                            for (long[] row: matrix.counts()) values.add(counted ? row[(int) index] : 0l);
+                            value.put("values", values);
+                            value.put("other", counted ? matrix.other()[(int) index] : 0l);
+                        }
                         this.put(formatter.apply(current), value);
                         current += width;
                     } while (current < max);
                 }};
 
-                for (Entry<LongRange, Long> entry: result.entrySet()) {
-                    count.put(formatter.apply(entry.getKey().min), new HashMap<>() {{
-                        this.put("min",   minmaxFormatter.apply(entry.getKey().min));
-                        this.put("max",   minmaxFormatter.apply(entry.getKey().max - 1));
-                        this.put("value", entry.getValue());
-                    }});
+                if (matrix != null) {
+                    ctx.json(toTimelineMatrix(field, matrix, count));
+                } else {
+                    ctx.json(count);
                 }
-
-                ctx.json(count);
             } else {
-                ctx.json(new HashMap<>());
+                ctx.json(matrix != null ? toTimelineMatrix(field, matrix, new HashMap<>()) : new HashMap<>());
             }
         } catch (IndexNotFoundException e) {
             logger.atWarn().log("index not found.");
         }
     }
 
+    private static interface ExportRow {
+        void accept(long count, int id, Document doc) throws Exception;
+    }
+
+    // 全件をlucene.search.max件ずつ並び順に検索し、FETCH_SIZE件ずつ読み込んで1件毎にrowへ渡す(保持するidの件数を制限する)
+    // ジョブがキャンセルされた場合は検索・読み込みを途中で中断する
+    private static void export(LuceneReader reader, String query, ZoneOffset offset, Set<String> fields, Consumer<Progress> progress, ExportRow row) throws Exception {
+        int rows = getSearchMax();
+        SearchResult hits = search(reader, query, offset, null, rows, Integer.MAX_VALUE);
+        long total = hits.total;
+        long count = 0;
+        while (true) {
+            if (hits.partial) throw new CancellationException("cancelled");
+            for (int from = 0; from < hits.ids.length; from += FETCH_SIZE) {
+                int[] chunk = Arrays.copyOfRange(hits.ids, from, Math.min(from + FETCH_SIZE, hits.ids.length));
+                List<Document> docs = reader.get(chunk, getStoredFields(fields));
+                for (int i = 0; i < chunk.length; i++) {
+                    progress.accept(new Progress(total, ++count));
+                    row.accept(count, chunk[i], docs.get(i));
+                }
+            }
+            if (hits.cursor == null) break;
+            // 2回目以降はヒット数を数え直さない
+            hits = search(reader, query, offset, hits.cursor, rows, rows);
+        }
+    }
+
     private static void exportTsv(Context ctx) throws IOException, ClassNotFoundException, SQLException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ParseException, QueryNodeException {
         TempFile temp = new TempFile("logucene_", FileFormat.TSV.getExt());
         ZoneOffset offset = getZoneOffset(ctx.cookieMap());
-        SearchResult hits = search(ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()));
+        Set<String> fields = getFields(ctx);
+        String query = ctx.queryParam("query");
+        // 条件が不正な場合はジョブを開始せずにエラーを返す
+        lucene.parse(LuceneFieldKeys.message.name(), query, LuceneFieldKeys.getPointsConfig(offset));
+        // エクスポートは時間の上限なし(ジョブのキャンセルで打ち切る)
+        SearchTimeout timeout = new SearchTimeout(0);
+        LuceneReader reader = lucene.getReader(timeout);
 
         ImportExportJob job = new ImportExportJob(temp, (file, progress) -> {
             try (
+                reader;
                 PrintWriter writer = new PrintWriter(new FileOutputStream(temp));
-                LuceneReader reader = lucene.getReader();
             ) {
                 Function<List<String>, String> format = row -> String.join("\t", row);
                 List<String> header = new ArrayList<>();
-                for (int count = 0; count < hits.ids.size(); count++) {
-                    progress.accept(new Progress(hits.total, count + 1));
-                    int id = hits.ids.get(count);
-                    Map<String, String> doc = SyslogReceiver.toMap(reader.get(id), offset);
+                export(reader, query, offset, fields, progress, (count, id, document) -> {
+                    Map<String, String> doc = SyslogReceiver.toMap(document, offset, fields);
                     List<String> line = new ArrayList<>();
                     if (header.size() == 0) {
                         for (String key: doc.keySet()) {
@@ -640,12 +917,13 @@ public class Main
                         line.add(doc.get(key));
                     }
                     writer.println(format.apply(line));
-                }
+                });
             }
         });
 
         job.setType(JobType.Export);
         job.setFormat(FileFormat.TSV);
+        job.onCancel(timeout::cancel);
 
         job.onUpdate((progress) -> {
             try {
@@ -783,7 +1061,12 @@ public class Main
     private static void exportSqlite(Context ctx) throws IOException, ParseException, QueryNodeException {
         TempFile temp = new TempFile("logucene_", FileFormat.SQLite.getExt());
         ZoneOffset offset = getZoneOffset(ctx.cookieMap());
-        SearchResult hits = search(ctx.queryParam("query"), getZoneOffset(ctx.cookieMap()));
+        String query = ctx.queryParam("query");
+        // 条件が不正な場合はジョブを開始せずにエラーを返す
+        lucene.parse(LuceneFieldKeys.message.name(), query, LuceneFieldKeys.getPointsConfig(offset));
+        // エクスポートは時間の上限なし(ジョブのキャンセルで打ち切る)
+        SearchTimeout timeout = new SearchTimeout(0);
+        LuceneReader reader = lucene.getReader(timeout);
 
         ImportExportJob job = new ImportExportJob(temp, (file, progress) -> {
 
@@ -815,13 +1098,11 @@ public class Main
                 connection.setAutoCommit(false);
                 statement.execute(ddl);
                 try (
-                    LuceneReader reader = lucene.getReader();
+                    reader;
                     PreparedStatement insert = connection.prepareStatement(dml);
                 ) {
-                    for (int count = 0; count < hits.ids.size(); count++) {
-                        progress.accept(new Progress(hits.total, count + 1));
-                        int id = hits.ids.get(count);
-                        Map<String, String> doc = SyslogReceiver.toMap(reader.get(id), offset);
+                    export(reader, query, offset, null, progress, (count, id, document) -> {
+                        Map<String, String> doc = SyslogReceiver.toMap(document, offset);
                         String message = doc.get(LuceneFieldKeys.message.name());
                         try (
                             TokenStream tokenizer = analyzer.tokenStream(
@@ -852,7 +1133,7 @@ public class Main
                                 insert.clearBatch();
                             }
                         }
-                    }
+                    });
                     insert.executeBatch();
                     insert.clearBatch();
                 }
@@ -862,6 +1143,7 @@ public class Main
 
         job.setType(JobType.Export);
         job.setFormat(FileFormat.SQLite);
+        job.onCancel(timeout::cancel);
 
         job.onUpdate((progress) -> {
             try {
@@ -928,9 +1210,17 @@ public class Main
         }});
     }
 
+    // 実行中のジョブは中断する(進捗はfinish、errorはcancelledで通知される)
+    private static void cancelJob(Context ctx) {
+        int id = Integer.valueOf(ctx.queryParam("id"));
+        ImportExportJob job = jobs.get(id);
+        if (job != null) job.cancel();
+    }
+
     private static void removeJob(Context ctx) throws JsonProcessingException {
         int id = Integer.valueOf(ctx.queryParam("id"));
         ImportExportJob job = jobs.get(id);
+        job.cancel();
         job.getData().delete();
         jobs.remove(id);
         notifyAll(jobConnections, new HashMap<>() {{
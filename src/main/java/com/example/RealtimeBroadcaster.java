@@ -0,0 +1,280 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.websocket.WsContext;
+
+// 受信したログをリアルタイム表示中のブラウザへまとめて送信する
+// 受信スレッドはキューへ入れるだけで、interval毎にタイムゾーン毎に1回だけJSONへ変換して非同期で送信する
+// 購読条件のあるクライアントには、まとめたログをメモリ上のindexへ登録して条件に一致したものだけを送信する
+public class RealtimeBroadcaster implements Consumer<Document>, Runnable, Closeable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private static class Client implements WriteCallback {
+        private final WsContext ctx;
+        private final ZoneOffset offset;
+        // 購読条件(nullの場合は全件)
+        private volatile Query query;
+        // 送信中(未完了)のフレーム数
+        private final AtomicInteger pending = new AtomicInteger();
+        // 送信が追いつかずに破棄したログ数(次に送信するフレームで通知)
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Client(WsContext ctx, ZoneOffset offset) {
+            this.ctx = ctx;
+            this.offset = offset;
+        }
+
+        @Override
+        public void writeSuccess() {
+            this.pending.decrementAndGet();
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            this.pending.decrementAndGet();
+        }
+    }
+
+    private final LuceneManager lucene;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final BlockingQueue<Document> queue;
+    private final long interval;
+    private final int maxPending;
+    private Thread worker;
+    private volatile boolean active = true;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    // 購読条件の判定用に、まとめたログをメモリ上のindexへ登録する
+    private final DocumentTemplate template = new DocumentTemplate();
+    private IndexWriter memory;
+
+    public RealtimeBroadcaster(LuceneManager lucene) {
+        this(lucene, Settings.getRealtimeQueue(), Settings.getRealtimeInterval(), Settings.getRealtimePending());
+    }
+
+    public RealtimeBroadcaster(LuceneManager lucene, int queueSize, long interval, int maxPending) {
+        this.lucene = lucene;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.interval = interval;
+        this.maxPending = maxPending;
+    }
+
+    public void start() {
+        this.worker = new Thread(this, "RealtimeBroadcaster");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void add(WsContext ctx, ZoneOffset offset) {
+        this.clients.put(ctx.sessionId(), new Client(ctx, offset));
+    }
+
+    // 検索と同じ構文の条件に一致するログだけを送信する(空の場合は全件)
+    public void subscribe(WsContext ctx, String query) throws QueryNodeException {
+        Client client = this.clients.get(ctx.sessionId());
+        if (client == null) return;
+        if (query == null || query.trim().isEmpty() || query.trim().equals("*:*")) {
+            client.query = null;
+        } else {
+            client.query = this.lucene.parse(
+                LuceneFieldKeys.message.name(),
+                query,
+                LuceneFieldKeys.getPointsConfig(client.offset)
+            );
+        }
+    }
+
+    public void remove(WsContext ctx) {
+        this.clients.remove(ctx.sessionId());
+    }
+
+    // 受信スレッドから呼ばれる(接続が無い場合は何もしない、キューが一杯の場合は破棄)
+    @Override
+    public void accept(Document doc) {
+        if (this.clients.isEmpty()) return;
+        if (!this.queue.offer(DocumentTemplate.copy(doc))) {
+            this.dropped.incrementAndGet();
+            for (Client client: this.clients.values()) client.dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Document> batch = new ArrayList<>();
+        logger.atInfo().addKeyValue("interval", this.interval).log("RealtimeBroadcaster start.");
+        while (this.active) {
+            try {
+                Document first = this.queue.poll(this.interval, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                // 最初のログからintervalの間に受信したログをまとめる
+                Thread.sleep(this.interval);
+                batch.add(first);
+                this.queue.drainTo(batch);
+                this.broadcast(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.atError().log("ws send error.", e);
+            } finally {
+                batch.clear();
+            }
+        }
+        logger.atInfo().log("RealtimeBroadcaster stop.");
+    }
+
+    private void broadcast(List<Document> batch) throws IOException {
+        Map<Query, BitSet> matches = this.match(batch);
+        // ログ毎のJSONはタイムゾーン毎に1回だけ作る
+        Map<ZoneOffset, String[]> logs = new HashMap<>();
+        for (Client client: this.clients.values()) {
+            if (!client.ctx.session.isOpen()) {
+                this.clients.remove(client.ctx.sessionId());
+                continue;
+            }
+            Query query = client.query;
+            BitSet match = query != null ? matches.get(query) : null;
+            int count = match != null ? match.cardinality() : (query != null ? 0 : batch.size());
+            if (count == 0) continue;
+            if (client.pending.get() >= this.maxPending) {
+                // 送信が追いつかないクライアントは待たずに破棄する
+                client.dropped.addAndGet(count);
+                continue;
+            }
+            String[] json = logs.computeIfAbsent(client.offset, key -> new String[batch.size()]);
+            StringBuilder frame = new StringBuilder();
+            frame.append("{\"dropped\":").append(client.dropped.getAndSet(0)).append(",\"logs\":[");
+            for (int i = 0; i < batch.size(); i++) {
+                if (match != null && !match.get(i)) continue;
+                if (json[i] == null) json[i] = mapper.writeValueAsString(SyslogReceiver.toMap(batch.get(i), client.offset));
+                if (frame.charAt(frame.length() - 1) != '[') frame.append(',');
+                frame.append(json[i]);
+            }
+            frame.append("]}");
+            client.pending.incrementAndGet();
+            client.ctx.session.getRemote().sendString(frame.toString(), client);
+            this.frames.incrementAndGet();
+            this.sent.addAndGet(count);
+        }
+    }
+
+    // 購読条件毎に一致したログの位置を返す(条件が同じクライアントは1回だけ判定する)
+    // 重い条件が他のクライアントへの送信を遅らせないように、条件毎の判定はintervalで打ち切る(それまでに一致したログだけを送信する)
+    private Map<Query, BitSet> match(List<Document> batch) throws IOException {
+        Map<Query, BitSet> matches = new HashMap<>();
+        for (Client client: this.clients.values()) {
+            if (client.query != null) matches.put(client.query, null);
+        }
+        if (matches.isEmpty()) return matches;
+        if (this.memory == null) {
+            IndexWriterConfig config = new IndexWriterConfig(this.lucene.getWriterAnalyzer());
+            // ドキュメントIDを登録順(batchの位置)のままにする
+            config.setMergePolicy(NoMergePolicy.INSTANCE);
+            config.setCommitOnClose(false);
+            this.memory = new IndexWriter(new ByteBuffersDirectory(), config);
+        }
+        this.memory.deleteAll();
+        for (Document doc: batch) this.memory.addDocument(this.template.set(doc));
+        try (DirectoryReader reader = DirectoryReader.open(this.memory)) {
+            for (Query query: matches.keySet()) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setQueryCache(null);
+                searcher.setTimeout(new SearchTimeout(this.interval));
+                BitSet match = new BitSet(batch.size());
+                searcher.search(query, new CollectorManager<SimpleCollector, BitSet>() {
+                    @Override
+                    public SimpleCollector newCollector() {
+                        return new SimpleCollector() {
+                            private int base;
+                            @Override
+                            protected void doSetNextReader(LeafReaderContext context) {
+                                this.base = context.docBase;
+                            }
+                            @Override
+                            public void collect(int doc) {
+                                match.set(this.base + doc);
+                            }
+                            @Override
+                            public ScoreMode scoreMode() {
+                                return ScoreMode.COMPLETE_NO_SCORES;
+                            }
+                        };
+                    }
+                    @Override
+                    public BitSet reduce(Collection<SimpleCollector> collectors) {
+                        return match;
+                    }
+                });
+                if (searcher.timedOut()) logger.atWarn().addKeyValue("query", query).log("realtime query timed out.");
+                matches.put(query, match);
+            }
+        }
+        return matches;
+    }
+
+    public Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("clients", clients.size());
+            this.put("queued", queue.size());
+            this.put("dropped", dropped.get());
+            this.put("frames", frames.get());
+            this.put("sent", sent.get());
+        }};
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.active = false;
+        if (this.worker != null) {
+            this.worker.interrupt();
+            try {
+                this.worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.memory != null) this.memory.close();
+    }
+}
@@ -0,0 +1,155 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.AlreadyClosedException;
+
+// 検索結果(並び順のidとヒット数)をreaderの世代毎に保持する
+// ページ移動・集計・エクスポートで同じ条件を検索し直さないようにし、refresh等でreaderが閉じられた場合は破棄する
+// 時間切れ・キャンセルで途中までの結果はキャッシュしない
+public class ResultCache {
+
+    // limitは集めるidの上限
+    public static record Key(Query query, Sort sort, int limit, List<IndexReader.CacheKey> readers) {}
+
+    // idsは並び順、readerが同じ間だけ有効(partialがtrueの場合は途中までの結果)
+    public static record Hits(int[] ids, long total, boolean partial) {
+        private long bytes() {
+            return 64 + 4L * this.ids.length;
+        }
+    }
+
+    public static interface Loader {
+        Hits load() throws IOException;
+    }
+
+    private final long maxBytes;
+    private final Map<Key, Hits> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<Hits>> loading = new HashMap<>();
+    private final Set<IndexReader.CacheKey> listened = new HashSet<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ResultCache() {
+        this(Settings.getLuceneCacheBytes());
+    }
+
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // 同じ条件を同時に検索した場合は1回だけ検索して結果を共有する
+    // 共有した結果が途中までの場合(先に検索したリクエストの時間切れ・キャンセル)は検索し直す
+    public Hits get(Key key, List<? extends IndexReader> readers, Loader loader) throws IOException {
+        if (this.maxBytes <= 0) return loader.load();
+        CompletableFuture<Hits> future;
+        boolean owner = false;
+        synchronized (this) {
+            Hits cached = this.cache.get(key);
+            if (cached != null) {
+                this.hits++;
+                return cached;
+            }
+            future = this.loading.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                this.loading.put(key, future);
+                this.misses++;
+                owner = true;
+            }
+        }
+        if (!owner) {
+            Hits loaded;
+            try {
+                loaded = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                throw new IOException(e.getCause());
+            }
+            return loaded.partial() ? this.get(key, readers, loader) : loaded;
+        }
+        try {
+            Hits loaded = loader.load();
+            synchronized (this) {
+                this.loading.remove(key);
+                if (!loaded.partial()) this.put(key, readers, loaded);
+            }
+            future.complete(loaded);
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                this.loading.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // 検索中にreaderが閉じられた場合は、破棄(invalidate)の後に追加しないようにキャッシュしない
+    // readerを閉じてからinvalidateが呼ばれるまでの間は参照数で判定する(invalidateは同じロックを待つ)
+    private void put(Key key, List<? extends IndexReader> readers, Hits value) {
+        if (value.bytes() > this.maxBytes) return;
+        for (IndexReader reader: readers) {
+            if (reader.getRefCount() <= 0) return;
+        }
+        for (IndexReader reader: readers) {
+            IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+            if (helper == null || !this.listened.add(helper.getKey())) continue;
+            try {
+                helper.addClosedListener(this::invalidate);
+            } catch (AlreadyClosedException e) {
+                this.listened.remove(helper.getKey());
+                return;
+            }
+        }
+        Hits previous = this.cache.put(key, value);
+        if (previous != null) this.bytes -= previous.bytes();
+        this.bytes += value.bytes();
+        var iterator = this.cache.entrySet().iterator();
+        while (this.bytes > this.maxBytes && iterator.hasNext()) {
+            this.bytes -= iterator.next().getValue().bytes();
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+
+    // readerが閉じられた(refreshで置き換えられた)場合は、そのreaderを含む結果を破棄する
+    private synchronized void invalidate(IndexReader.CacheKey reader) {
+        this.listened.remove(reader);
+        var iterator = this.cache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey().readers().contains(reader)) {
+                this.bytes -= entry.getValue().bytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("entries", cache.size());
+            this.put("bytes", bytes);
+            this.put("maxBytes", maxBytes);
+            this.put("hits", ResultCache.this.hits);
+            this.put("misses", misses);
+            this.put("evictions", evictions);
+        }};
+    }
+}
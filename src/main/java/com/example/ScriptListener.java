@@ -0,0 +1,196 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.apache.lucene.document.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 受信したログ毎にGroovyスクリプトを実行する
+// スクリプトは一度だけコンパイルし(ファイルが更新された場合は再コンパイル)、受信処理とは別のスレッドで実行する
+public class ScriptListener implements Consumer<Document>, Closeable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // ファイルの更新を確認する間隔(ミリ秒)
+    private static final long RELOAD_INTERVAL = 1000;
+
+    private final File file;
+    private final ScriptEngine engine;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final long timeout;
+    private volatile CompiledScript compiled;
+    private volatile long modified = 0;
+    private volatile long checked = 0;
+    private final Map<Thread, Long> running = new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    public ScriptListener(String path) {
+        this(
+            path,
+            Settings.getSyslogListenerWorkers(),
+            Settings.getSyslogListenerQueue(),
+            Settings.getSyslogListenerTimeout()
+        );
+    }
+
+    public ScriptListener(String path, int workers, int queueSize, long timeout) {
+        this.file = new File(path);
+        this.engine = new ScriptEngineManager().getEngineByName("groovy");
+        this.timeout = timeout;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            workers,
+            workers,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+                Thread thread = new Thread(runnable, "ScriptListener-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ScriptListener-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (timeout > 0) {
+            long interval = Math.max(10, timeout / 10);
+            this.watchdog.scheduleWithFixedDelay(this::interrupt, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        this.reload();
+        logger.atInfo().addKeyValue(
+            "path", path
+        ).addKeyValue(
+            "workers", workers
+        ).addKeyValue(
+            "queue", queueSize
+        ).addKeyValue(
+            "timeout", timeout
+        ).log("ScriptListener start.");
+    }
+
+    // ファイルの更新日時が変わっていれば再コンパイルする(コンパイルに失敗した場合は前回のスクリプトを使い続ける)
+    private synchronized void reload() {
+        long lastModified = this.file.lastModified();
+        this.checked = new Date().getTime();
+        if (lastModified == this.modified) return;
+        this.modified = lastModified;
+        try (Reader reader = new FileReader(this.file)) {
+            this.compiled = ((Compilable) this.engine).compile(reader);
+            this.reloads.incrementAndGet();
+            logger.atInfo().addKeyValue("path", this.file.getPath()).log("ScriptListener compiled.");
+        } catch (IOException | ScriptException e) {
+            logger.atError().addKeyValue("path", this.file.getPath()).log("script compile error.", e);
+        }
+    }
+
+    // 受信スレッドからはドキュメントの複製をキューへ入れるだけで、キューが一杯の場合は破棄する
+    @Override
+    public void accept(Document doc) {
+        Document copy = DocumentTemplate.copy(doc);
+        try {
+            this.executor.execute(() -> this.run(copy));
+        } catch (RejectedExecutionException e) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    private void run(Document doc) {
+        Thread thread = Thread.currentThread();
+        try {
+            if (new Date().getTime() - this.checked >= RELOAD_INTERVAL) this.reload();
+            CompiledScript compiled = this.compiled;
+            if (compiled == null) return;
+            Bindings bindings = this.engine.createBindings();
+            bindings.put("doc", doc);
+            this.running.put(thread, new Date().getTime());
+            compiled.eval(bindings);
+            this.executed.incrementAndGet();
+        } catch (Exception e) {
+            this.failed.incrementAndGet();
+            logger.atError().log("script eval error.", e);
+        } finally {
+            synchronized (thread) {
+                this.running.remove(thread);
+                // タイムアウトによる割り込みを次の実行へ持ち越さない
+                Thread.interrupted();
+            }
+        }
+    }
+
+    // 実行時間がtimeoutを超えたスクリプトを割り込みで中断する(HTTP通信等の待機中であれば中断される)
+    private void interrupt() {
+        long now = new Date().getTime();
+        for (Map.Entry<Thread, Long> entry: this.running.entrySet()) {
+            if (now - entry.getValue() < this.timeout) continue;
+            synchronized (entry.getKey()) {
+                if (this.running.remove(entry.getKey(), entry.getValue())) {
+                    this.timeouts.incrementAndGet();
+                    logger.atWarn().addKeyValue("thread", entry.getKey().getName()).log("script timeout.");
+                    entry.getKey().interrupt();
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("queued", executor.getQueue().size());
+            this.put("active", executor.getActiveCount());
+            this.put("executed", executed.get());
+            this.put("dropped", dropped.get());
+            this.put("failed", failed.get());
+            this.put("timeouts", timeouts.get());
+            this.put("reloads", reloads.get());
+        }};
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(this.timeout > 0 ? this.timeout : 1000, TimeUnit.MILLISECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            this.watchdog.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example;
+
+import org.apache.lucene.index.QueryTimeout;
+
+// 検索(1リクエスト)の時間の上限とキャンセル
+// 上限を超えた・キャンセルされた場合、検索はその時点までの結果を返す(LuceneReader.Partialがtrueになる)
+public class SearchTimeout implements QueryTimeout {
+
+    private final long start = System.nanoTime();
+    private final long millis;
+    private volatile boolean cancelled = false;
+
+    public SearchTimeout() {
+        this(Settings.getLuceneSearchTimeout());
+    }
+
+    // millisが0以下の場合は時間の上限なし(キャンセルのみ)
+    public SearchTimeout(long millis) {
+        this.millis = millis;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public boolean shouldExit() {
+        return this.cancelled || (this.millis > 0 && System.nanoTime() - this.start > this.millis * 1_000_000);
+    }
+}
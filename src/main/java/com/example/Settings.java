@@ -19,6 +19,106 @@ public class Settings {
         ));
     }
 
+    public static int getSyslogTcpPort() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.tcp.port",
+            System.getenv().containsKey("SYSLOG_TCP_PORT")
+                ? System.getenv("SYSLOG_TCP_PORT")
+                : "0"
+        ));
+    }
+
+    public static int getSyslogTcpConnections() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.tcp.connections",
+            System.getenv().containsKey("SYSLOG_TCP_CONNECTIONS")
+                ? System.getenv("SYSLOG_TCP_CONNECTIONS")
+                : "256"
+        ));
+    }
+
+    public static int getSyslogTcpFrame() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.tcp.frame",
+            System.getenv().containsKey("SYSLOG_TCP_FRAME")
+                ? System.getenv("SYSLOG_TCP_FRAME")
+                : "65536"
+        ));
+    }
+
+    public static String getSyslogReceiver() {
+        return System.getProperty(
+            "syslog.receiver",
+            System.getenv().containsKey("SYSLOG_RECEIVER")
+                ? System.getenv("SYSLOG_RECEIVER")
+                : "socket"
+        );
+    }
+
+    public static int getSyslogReceiverThreads() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.receiver.threads",
+            System.getenv().containsKey("SYSLOG_RECEIVER_THREADS")
+                ? System.getenv("SYSLOG_RECEIVER_THREADS")
+                : String.valueOf(Runtime.getRuntime().availableProcessors())
+        ));
+    }
+
+    public static int getSyslogReceiverWorkers() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.receiver.workers",
+            System.getenv().containsKey("SYSLOG_RECEIVER_WORKERS")
+                ? System.getenv("SYSLOG_RECEIVER_WORKERS")
+                : String.valueOf(Runtime.getRuntime().availableProcessors())
+        ));
+    }
+
+
+    public static int getSyslogReceiverRcvbuf() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.receiver.rcvbuf",
+            System.getenv().containsKey("SYSLOG_RECEIVER_RCVBUF")
+                ? System.getenv("SYSLOG_RECEIVER_RCVBUF")
+                : "0"
+        ));
+    }
+
+    public static int getSyslogBufferSize() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.buffer.size",
+            System.getenv().containsKey("SYSLOG_BUFFER_SIZE")
+                ? System.getenv("SYSLOG_BUFFER_SIZE")
+                : "16384"
+        ));
+    }
+
+    public static String getSyslogBufferOverflow() {
+        return System.getProperty(
+            "syslog.buffer.overflow",
+            System.getenv().containsKey("SYSLOG_BUFFER_OVERFLOW")
+                ? System.getenv("SYSLOG_BUFFER_OVERFLOW")
+                : "block"
+        );
+    }
+
+    public static String getSyslogBufferSpill() {
+        return System.getProperty(
+            "syslog.buffer.spill",
+            System.getenv().containsKey("SYSLOG_BUFFER_SPILL")
+                ? System.getenv("SYSLOG_BUFFER_SPILL")
+                : "spill.dat"
+        );
+    }
+
+    public static long getSyslogBufferSpillSize() {
+        return Long.valueOf(System.getProperty(
+            "syslog.buffer.spill.size",
+            System.getenv().containsKey("SYSLOG_BUFFER_SPILL_SIZE")
+                ? System.getenv("SYSLOG_BUFFER_SPILL_SIZE")
+                : "1073741824"
+        ));
+    }
+
     public static int getWebPort() {
         return Integer.valueOf(System.getProperty(
             "web.port",
@@ -46,6 +146,223 @@ public class Settings {
         );
     }
 
+    public static int getLuceneBatchQueue() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.batch.queue",
+            System.getenv().containsKey("LUCENE_BATCH_QUEUE")
+                ? System.getenv("LUCENE_BATCH_QUEUE")
+                : "65536"
+        ));
+    }
+
+    public static int getLuceneBatchSize() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.batch.size",
+            System.getenv().containsKey("LUCENE_BATCH_SIZE")
+                ? System.getenv("LUCENE_BATCH_SIZE")
+                : "4096"
+        ));
+    }
+
+    // spoolが無効の場合はcommit前に停止すると受信済みのログが失われるため、既定はバッチ毎
+    public static String getLuceneCommitDurability() {
+        return System.getProperty(
+            "lucene.commit.durability",
+            System.getenv().containsKey("LUCENE_COMMIT_DURABILITY")
+                ? System.getenv("LUCENE_COMMIT_DURABILITY")
+                : getLuceneSpool().isEmpty() ? "batch" : "interval"
+        );
+    }
+
+    public static int getLuceneCommitDocs() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.commit.docs",
+            System.getenv().containsKey("LUCENE_COMMIT_DOCS")
+                ? System.getenv("LUCENE_COMMIT_DOCS")
+                : "100000"
+        ));
+    }
+
+    public static long getLuceneCommitInterval() {
+        return Long.valueOf(System.getProperty(
+            "lucene.commit.interval",
+            System.getenv().containsKey("LUCENE_COMMIT_INTERVAL")
+                ? System.getenv("LUCENE_COMMIT_INTERVAL")
+                : "1000"
+        ));
+    }
+
+    public static String getLuceneSpool() {
+        return System.getProperty(
+            "lucene.spool",
+            System.getenv().containsKey("LUCENE_SPOOL")
+                ? System.getenv("LUCENE_SPOOL")
+                : "spool.dat"
+        );
+    }
+
+    public static long getLuceneSpoolSize() {
+        return Long.valueOf(System.getProperty(
+            "lucene.spool.size",
+            System.getenv().containsKey("LUCENE_SPOOL_SIZE")
+                ? System.getenv("LUCENE_SPOOL_SIZE")
+                : "67108864"
+        ));
+    }
+
+    public static long getLuceneRefreshInterval() {
+        return Long.valueOf(System.getProperty(
+            "lucene.refresh.interval",
+            System.getenv().containsKey("LUCENE_REFRESH_INTERVAL")
+                ? System.getenv("LUCENE_REFRESH_INTERVAL")
+                : "1000"
+        ));
+    }
+
+    public static boolean getLuceneIndexSort() {
+        return Boolean.valueOf(System.getProperty(
+            "lucene.index.sort",
+            System.getenv().containsKey("LUCENE_INDEX_SORT")
+                ? System.getenv("LUCENE_INDEX_SORT")
+                : "false"
+        ));
+    }
+
+    public static int getLuceneSearchTotal() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.search.total",
+            System.getenv().containsKey("LUCENE_SEARCH_TOTAL")
+                ? System.getenv("LUCENE_SEARCH_TOTAL")
+                : "0"
+        ));
+    }
+
+    public static long getLuceneSearchTimeout() {
+        return Long.valueOf(System.getProperty(
+            "lucene.search.timeout",
+            System.getenv().containsKey("LUCENE_SEARCH_TIMEOUT")
+                ? System.getenv("LUCENE_SEARCH_TIMEOUT")
+                : "30000"
+        ));
+    }
+
+    public static int getLuceneSearchMax() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.search.max",
+            System.getenv().containsKey("LUCENE_SEARCH_MAX")
+                ? System.getenv("LUCENE_SEARCH_MAX")
+                : "100000"
+        ));
+    }
+
+    public static long getLuceneCacheBytes() {
+        return Long.valueOf(System.getProperty(
+            "lucene.cache.bytes",
+            System.getenv().containsKey("LUCENE_CACHE_BYTES")
+                ? System.getenv("LUCENE_CACHE_BYTES")
+                : "67108864"
+        ));
+    }
+
+    public static long getLuceneQueryCacheBytes() {
+        return Long.valueOf(System.getProperty(
+            "lucene.query.cache.bytes",
+            System.getenv().containsKey("LUCENE_QUERY_CACHE_BYTES")
+                ? System.getenv("LUCENE_QUERY_CACHE_BYTES")
+                : "33554432"
+        ));
+    }
+
+    public static int getLuceneQueryCacheSize() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.query.cache.size",
+            System.getenv().containsKey("LUCENE_QUERY_CACHE_SIZE")
+                ? System.getenv("LUCENE_QUERY_CACHE_SIZE")
+                : "1000"
+        ));
+    }
+
+    public static SharedQueryCache.Policy getLuceneQueryCachePolicy() {
+        return SharedQueryCache.Policy.valueOf(System.getProperty(
+            "lucene.query.cache.policy",
+            System.getenv().containsKey("LUCENE_QUERY_CACHE_POLICY")
+                ? System.getenv("LUCENE_QUERY_CACHE_POLICY")
+                : "usage"
+        ));
+    }
+
+    public static int getLuceneQueryCacheMinDocs() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.query.cache.min.docs",
+            System.getenv().containsKey("LUCENE_QUERY_CACHE_MIN_DOCS")
+                ? System.getenv("LUCENE_QUERY_CACHE_MIN_DOCS")
+                : "10000"
+        ));
+    }
+
+    public static int getLuceneSearchThreads() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.search.threads",
+            System.getenv().containsKey("LUCENE_SEARCH_THREADS")
+                ? System.getenv("LUCENE_SEARCH_THREADS")
+                : String.valueOf(Runtime.getRuntime().availableProcessors())
+        ));
+    }
+
+    public static String getLucenePartition() {
+        return System.getProperty(
+            "lucene.partition",
+            System.getenv().containsKey("LUCENE_PARTITION")
+                ? System.getenv("LUCENE_PARTITION")
+                : "none"
+        );
+    }
+
+    public static int getLuceneRetentionDays() {
+        return Integer.valueOf(System.getProperty(
+            "lucene.retention.days",
+            System.getenv().containsKey("LUCENE_RETENTION_DAYS")
+                ? System.getenv("LUCENE_RETENTION_DAYS")
+                : "0"
+        ));
+    }
+
+    public static long getLuceneRetentionBytes() {
+        return Long.valueOf(System.getProperty(
+            "lucene.retention.bytes",
+            System.getenv().containsKey("LUCENE_RETENTION_BYTES")
+                ? System.getenv("LUCENE_RETENTION_BYTES")
+                : "0"
+        ));
+    }
+
+    public static long getRealtimeInterval() {
+        return Long.valueOf(System.getProperty(
+            "realtime.interval",
+            System.getenv().containsKey("REALTIME_INTERVAL")
+                ? System.getenv("REALTIME_INTERVAL")
+                : "200"
+        ));
+    }
+
+    public static int getRealtimeQueue() {
+        return Integer.valueOf(System.getProperty(
+            "realtime.queue",
+            System.getenv().containsKey("REALTIME_QUEUE")
+                ? System.getenv("REALTIME_QUEUE")
+                : "4096"
+        ));
+    }
+
+    public static int getRealtimePending() {
+        return Integer.valueOf(System.getProperty(
+            "realtime.pending",
+            System.getenv().containsKey("REALTIME_PENDING")
+                ? System.getenv("REALTIME_PENDING")
+                : "16"
+        ));
+    }
+
     public static String getSqliteAnalyzer() {
         return System.getProperty(
             "sqlite.analyzer",
@@ -92,28 +409,131 @@ public class Settings {
         );
     }
 
+    public static int getSyslogListenerWorkers() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.listener.workers",
+            System.getenv().containsKey("SYSLOG_LISTENER_WORKERS")
+                ? System.getenv("SYSLOG_LISTENER_WORKERS")
+                : "2"
+        ));
+    }
+
+    public static int getSyslogListenerQueue() {
+        return Integer.valueOf(System.getProperty(
+            "syslog.listener.queue",
+            System.getenv().containsKey("SYSLOG_LISTENER_QUEUE")
+                ? System.getenv("SYSLOG_LISTENER_QUEUE")
+                : "1024"
+        ));
+    }
+
+    public static long getSyslogListenerTimeout() {
+        return Long.valueOf(System.getProperty(
+            "syslog.listener.timeout",
+            System.getenv().containsKey("SYSLOG_LISTENER_TIMEOUT")
+                ? System.getenv("SYSLOG_LISTENER_TIMEOUT")
+                : "10000"
+        ));
+    }
+
     public static void print() {
         logger.info("Settings:");
         logger.info("  syslog.port=" + getSyslogPort());
+        logger.info("  syslog.tcp.port=" + getSyslogTcpPort());
+        logger.info("  syslog.tcp.connections=" + getSyslogTcpConnections());
+        logger.info("  syslog.tcp.frame=" + getSyslogTcpFrame());
+        logger.info("  syslog.receiver=" + getSyslogReceiver());
+        logger.info("  syslog.receiver.threads=" + getSyslogReceiverThreads());
+        logger.info("  syslog.receiver.workers=" + getSyslogReceiverWorkers());
+        logger.info("  syslog.receiver.rcvbuf=" + getSyslogReceiverRcvbuf());
+        logger.info("  syslog.buffer.size=" + getSyslogBufferSize());
+        logger.info("  syslog.buffer.overflow=" + getSyslogBufferOverflow());
+        logger.info("  syslog.buffer.spill=" + getSyslogBufferSpill());
+        logger.info("  syslog.buffer.spill.size=" + getSyslogBufferSpillSize());
         logger.info("  web.port=" + getWebPort());
         logger.info("  lucene.index=" + getLuceneIndex());
         logger.info("  lucene.analyzer=" + getLuceneAnalyzer());
+        logger.info("  lucene.batch.queue=" + getLuceneBatchQueue());
+        logger.info("  lucene.batch.size=" + getLuceneBatchSize());
+        logger.info("  lucene.commit.durability=" + getLuceneCommitDurability());
+        logger.info("  lucene.commit.docs=" + getLuceneCommitDocs());
+        logger.info("  lucene.commit.interval=" + getLuceneCommitInterval());
+        logger.info("  lucene.spool=" + getLuceneSpool());
+        logger.info("  lucene.spool.size=" + getLuceneSpoolSize());
+        logger.info("  lucene.refresh.interval=" + getLuceneRefreshInterval());
+        logger.info("  lucene.index.sort=" + getLuceneIndexSort());
+        logger.info("  lucene.search.total=" + getLuceneSearchTotal());
+        logger.info("  lucene.search.timeout=" + getLuceneSearchTimeout());
+        logger.info("  lucene.search.max=" + getLuceneSearchMax());
+        logger.info("  lucene.cache.bytes=" + getLuceneCacheBytes());
+        logger.info("  lucene.query.cache.bytes=" + getLuceneQueryCacheBytes());
+        logger.info("  lucene.query.cache.size=" + getLuceneQueryCacheSize());
+        logger.info("  lucene.query.cache.policy=" + getLuceneQueryCachePolicy());
+        logger.info("  lucene.query.cache.min.docs=" + getLuceneQueryCacheMinDocs());
+        logger.info("  lucene.search.threads=" + getLuceneSearchThreads());
+        logger.info("  lucene.partition=" + getLucenePartition());
+        logger.info("  lucene.retention.days=" + getLuceneRetentionDays());
+        logger.info("  lucene.retention.bytes=" + getLuceneRetentionBytes());
+        logger.info("  realtime.interval=" + getRealtimeInterval());
+        logger.info("  realtime.queue=" + getRealtimeQueue());
+        logger.info("  realtime.pending=" + getRealtimePending());
         logger.info("  sqlite.analyzer=" + getSqliteAnalyzer());
         logger.info("  system.timezone=" + getUserTimezone());
         logger.info("  syslog.timezone=" + getSyslogTimezone());
         logger.info("  syslog.listener=" + getSyslogListener());
+        logger.info("  syslog.listener.workers=" + getSyslogListenerWorkers());
+        logger.info("  syslog.listener.queue=" + getSyslogListenerQueue());
+        logger.info("  syslog.listener.timeout=" + getSyslogListenerTimeout());
     }
 
     public static Map<String, Object> get() {
         return new HashMap<>() {{
             this.put("syslog.port", getSyslogPort());
+            this.put("syslog.tcp.port", getSyslogTcpPort());
+            this.put("syslog.tcp.connections", getSyslogTcpConnections());
+            this.put("syslog.tcp.frame", getSyslogTcpFrame());
+            this.put("syslog.receiver", getSyslogReceiver());
+            this.put("syslog.receiver.threads", getSyslogReceiverThreads());
+            this.put("syslog.receiver.workers", getSyslogReceiverWorkers());
+            this.put("syslog.receiver.rcvbuf", getSyslogReceiverRcvbuf());
+            this.put("syslog.buffer.size", getSyslogBufferSize());
+            this.put("syslog.buffer.overflow", getSyslogBufferOverflow());
+            this.put("syslog.buffer.spill", getSyslogBufferSpill());
+            this.put("syslog.buffer.spill.size", getSyslogBufferSpillSize());
             this.put("web.port", getWebPort());
             this.put("lucene.index", getLuceneIndex());
             this.put("lucene.analyzer", getLuceneAnalyzer());
+            this.put("lucene.batch.queue", getLuceneBatchQueue());
+            this.put("lucene.batch.size", getLuceneBatchSize());
+            this.put("lucene.commit.durability", getLuceneCommitDurability());
+            this.put("lucene.commit.docs", getLuceneCommitDocs());
+            this.put("lucene.commit.interval", getLuceneCommitInterval());
+            this.put("lucene.spool", getLuceneSpool());
+            this.put("lucene.spool.size", getLuceneSpoolSize());
+            this.put("lucene.refresh.interval", getLuceneRefreshInterval());
+            this.put("lucene.index.sort", getLuceneIndexSort());
+            this.put("lucene.search.total", getLuceneSearchTotal());
+            this.put("lucene.search.timeout", getLuceneSearchTimeout());
+            this.put("lucene.search.max", getLuceneSearchMax());
+            this.put("lucene.cache.bytes", getLuceneCacheBytes());
+            this.put("lucene.query.cache.bytes", getLuceneQueryCacheBytes());
+            this.put("lucene.query.cache.size", getLuceneQueryCacheSize());
+            this.put("lucene.query.cache.policy", getLuceneQueryCachePolicy());
+            this.put("lucene.query.cache.min.docs", getLuceneQueryCacheMinDocs());
+            this.put("lucene.search.threads", getLuceneSearchThreads());
+            this.put("lucene.partition", getLucenePartition());
+            this.put("lucene.retention.days", getLuceneRetentionDays());
+            this.put("lucene.retention.bytes", getLuceneRetentionBytes());
+            this.put("realtime.interval", getRealtimeInterval());
+            this.put("realtime.queue", getRealtimeQueue());
+            this.put("realtime.pending", getRealtimePending());
             this.put("sqlite.analyzer", getSqliteAnalyzer());
             this.put("system.timezone", getUserTimezone());
             this.put("syslog.timezone", getSyslogTimezone());
             this.put("syslog.listener", getSyslogListener());
+            this.put("syslog.listener.workers", getSyslogListenerWorkers());
+            this.put("syslog.listener.queue", getSyslogListenerQueue());
+            this.put("syslog.listener.timeout", getSyslogListenerTimeout());
         }};
     }
 }
@@ -0,0 +1,115 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+// 検索条件(フィルタ)毎の一致したドキュメントのビットセットをセグメント毎に保持する
+// キャッシュはセグメント単位のため、検索毎にIndexSearcherを作り直しても同じセグメントであれば再利用される
+public class SharedQueryCache extends LRUQueryCache {
+
+    public static enum Policy {
+        // 繰り返し使用された条件だけをキャッシュする
+        usage,
+        // 全ての条件をキャッシュする
+        always
+    }
+
+    private final long maxBytes;
+    private final Policy policy;
+    private final QueryCachingPolicy cachingPolicy;
+    // 条件の種類(Queryのクラス)毎のhit, miss, cache, eviction
+    private final Map<String, LongAdder[]> types = new ConcurrentHashMap<>();
+
+    public SharedQueryCache() {
+        this(Settings.getLuceneQueryCacheSize(), Settings.getLuceneQueryCacheBytes(), Settings.getLuceneQueryCachePolicy(), Settings.getLuceneQueryCacheMinDocs());
+    }
+
+    // minDocs件未満のセグメントはキャッシュしない(検索し直す方が速いため)
+    public SharedQueryCache(int maxSize, long maxBytes, Policy policy, int minDocs) {
+        super(Math.max(1, maxSize), Math.max(1, maxBytes), context -> context.reader().maxDoc() >= minDocs, 10);
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.cachingPolicy = switch (policy) {
+            case always -> new QueryCachingPolicy() {
+                @Override
+                public void onUse(Query query) {
+                }
+
+                @Override
+                public boolean shouldCache(Query query) {
+                    return true;
+                }
+            };
+            default -> new UsageTrackingQueryCachingPolicy();
+        };
+    }
+
+    // キャッシュを使用するIndexSearcher(maxBytesが0以下の場合はキャッシュしない)
+    public IndexSearcher newSearcher(IndexReader reader) {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(this.maxBytes > 0 ? this : null);
+        searcher.setQueryCachingPolicy(this.cachingPolicy);
+        return searcher;
+    }
+
+    private LongAdder[] type(Query query) {
+        return this.types.computeIfAbsent(query.getClass().getSimpleName(), key -> new LongAdder[] {
+            new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()
+        });
+    }
+
+    @Override
+    protected void onHit(Object readerCoreKey, Query query) {
+        super.onHit(readerCoreKey, query);
+        this.type(query)[0].increment();
+    }
+
+    @Override
+    protected void onMiss(Object readerCoreKey, Query query) {
+        super.onMiss(readerCoreKey, query);
+        this.type(query)[1].increment();
+    }
+
+    @Override
+    protected void onQueryCache(Query query, long ramBytesUsed) {
+        super.onQueryCache(query, ramBytesUsed);
+        this.type(query)[2].increment();
+    }
+
+    @Override
+    protected void onQueryEviction(Query query, long ramBytesUsed) {
+        super.onQueryEviction(query, ramBytesUsed);
+        this.type(query)[3].increment();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> types = new HashMap<>();
+        for (Map.Entry<String, LongAdder[]> entry: this.types.entrySet()) {
+            types.put(entry.getKey(), new HashMap<>() {{
+                this.put("hits", entry.getValue()[0].sum());
+                this.put("misses", entry.getValue()[1].sum());
+                this.put("cached", entry.getValue()[2].sum());
+                this.put("evictions", entry.getValue()[3].sum());
+            }});
+        }
+        return new HashMap<>() {{
+            this.put("policy", policy.name());
+            this.put("maxBytes", maxBytes);
+            this.put("bytes", ramBytesUsed());
+            this.put("entries", getCacheSize());
+            this.put("hits", getHitCount());
+            this.put("misses", getMissCount());
+            this.put("evictions", getEvictionCount());
+            this.put("types", types);
+        }};
+    }
+}
@@ -4,20 +4,26 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import lombok.ToString;
 
 public class SyslogParser {
 
+    private static Logger logger = LoggerFactory.getLogger(SyslogParser.class);
+
     public static enum Facility {
         unknown(null),
         kern(0),
@@ -55,14 +61,16 @@ public class SyslogParser {
             return this.id;
         }
 
-        public static Facility of(Integer priority) {
-            Integer facility = priority / 8;
+        private static final Facility[] ids = new Facility[24];
+        static {
             for (Facility item: Facility.values()) {
-                if (item.id == facility) {
-                    return item;
-                }
+                if (item.id != null) ids[item.id] = item;
             }
-            return unknown;
+        }
+
+        public static Facility of(Integer priority) {
+            int facility = priority / 8;
+            return facility >= 0 && facility < ids.length ? ids[facility] : unknown;
         }
     }
 
@@ -87,14 +95,16 @@ public class SyslogParser {
             return this.id;
         }
 
-        public static Severity of(Integer priority) {
-            Integer severity = priority % 8;
+        private static final Severity[] ids = new Severity[8];
+        static {
             for (Severity item: Severity.values()) {
-                if (item.id == severity) {
-                    return item;
-                }
+                if (item.id != null) ids[item.id] = item;
             }
-            return unknown;
+        }
+
+        public static Severity of(Integer priority) {
+            int severity = priority % 8;
+            return severity >= 0 && severity < ids.length ? ids[severity] : unknown;
         }
     };
 
@@ -105,12 +115,15 @@ public class SyslogParser {
         public Facility facility;
         public Severity severity;
         public LocalDateTime date;
+        public ZoneId zone;
         public String host;
         public String message;
+        @ToString.Exclude
+        public String raw;
         public Rfc3164(Integer priority) {
             this.priority   = priority;
-            this.facility   = Facility.of(this.priority);
-            this.severity   = Severity.of(this.priority);
+            this.facility   = priority != null ? Facility.of(this.priority) : null;
+            this.severity   = priority != null ? Severity.of(this.priority) : null;
             this.format = "rfc3164";
         }
     }
@@ -118,7 +131,6 @@ public class SyslogParser {
     @ToString(callSuper=true)
     public static class Rfc5424 extends Rfc3164 {
         public Integer version;
-        public ZoneId zone;
         public String  app;
         public String  procid;
         public String  msgid;
@@ -133,118 +145,439 @@ public class SyslogParser {
         public SyslogParseException(Exception e) {
             super(e);
         }
+        public SyslogParseException(String message) {
+            super(message);
+        }
     }
 
-    private static Map<String, String> mmm = Map.ofEntries(
-        Map.entry("jan", "01"),
-        Map.entry("feb", "02"),
-        Map.entry("mar", "03"),
-        Map.entry("apr", "04"),
-        Map.entry("may", "05"),
-        Map.entry("jun", "06"),
-        Map.entry("jul", "07"),
-        Map.entry("aug", "08"),
-        Map.entry("sep", "09"),
-        Map.entry("oct", "10"),
-        Map.entry("nov", "11"),
-        Map.entry("dec", "12")
-    );
+    private static final ThreadLocal<Parser> parsers = ThreadLocal.withInitial(Parser::new);
+
+    // 設定されたタイムゾーン(送信元アドレスは偽装できるため、受信毎には増やさず設定のあるアドレスだけを起動時に読む)
+    private static class Zones {
+        private static final ZoneId common = of("syslog.timezone", Settings.getSyslogTimezone(), ZoneId.systemDefault());
+        // syslog.timezone[送信元IPアドレス]
+        private static final Map<String, ZoneId> properties = new HashMap<>();
+        // SYSLOG_TIMEZONE_送信元IPアドレス(.と:は_)
+        private static final Map<String, ZoneId> env = new HashMap<>();
+        static {
+            for (String key: System.getProperties().stringPropertyNames()) {
+                if (key.startsWith("syslog.timezone[") && key.endsWith("]")) {
+                    ZoneId zone = of(key, System.getProperty(key), null);
+                    if (zone != null) properties.put(key.substring("syslog.timezone[".length(), key.length() - 1), zone);
+                }
+            }
+            for (Map.Entry<String, String> entry: System.getenv().entrySet()) {
+                if (entry.getKey().startsWith("SYSLOG_TIMEZONE_")) {
+                    ZoneId zone = of(entry.getKey(), entry.getValue(), null);
+                    if (zone != null) env.put(entry.getKey().substring("SYSLOG_TIMEZONE_".length()), zone);
+                }
+            }
+        }
+
+        private static ZoneId of(String key, String zone, ZoneId defaultZone) {
+            if (zone == null || zone.isEmpty()) return defaultZone;
+            try {
+                return ZoneId.of(zone);
+            } catch (Exception e) {
+                logger.atWarn().addKeyValue(key, zone).log("SyslogParser illegal timezone.");
+                return defaultZone;
+            }
+        }
+    }
+
+    // RFC3164の日時をパースする際のタイムゾーン
+    public static ZoneId zone(String addr) {
+        if (addr == null) return Zones.common;
+        ZoneId zone = Zones.properties.get(addr);
+        if (zone == null && !Zones.env.isEmpty()) zone = Zones.env.get(addr.replace(".", "_").replace(":", "_"));
+        return zone != null ? zone : Zones.common;
+    }
+
+    // スレッド毎に再利用するパーサ
+    public static Parser parser() {
+        return parsers.get();
+    }
 
     public static Rfc3164 parse(String log) throws SyslogParseException {
-        try {
-            Map.Entry<Integer, List<String>> priority = parsePriority(log);
-            if (isNumber(priority.getValue().get(0))) {
-                // RFC5424
-                return parseRfc5424(priority);
-            } else {
-                // RFC3164
-                return parseRfc3164(priority);
+        byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+        Rfc3164 data = parser().parse(bytes, 0, bytes.length, null);
+        if ("unknown".equals(data.format)) throw new SyslogParseException("illegal syslog format.");
+        return data;
+    }
+
+    // 受信時のエスケープ(\ \r \n \t)を戻す
+    public static byte[] unescape(String message) {
+        byte[] src = message.getBytes(StandardCharsets.UTF_8);
+        int n = 0;
+        for (int i = 0; i < src.length; i++) {
+            byte b = src[i];
+            if (b == '\\' && i + 1 < src.length) {
+                switch (src[i + 1]) {
+                    case '\\': b = '\\'; i++; break;
+                    case 'r':  b = '\r'; i++; break;
+                    case 'n':  b = '\n'; i++; break;
+                    case 't':  b = '\t'; i++; break;
+                    default: break;
+                }
             }
-        } catch (Exception e) {
-            throw new SyslogParseException(e);
+            src[n++] = b;
         }
+        return n == src.length ? src : Arrays.copyOf(src, n);
     }
 
-    // TODO: ちゃんとパースする
-    public static Rfc3164 parseRfc3164(Map.Entry<Integer, List<String>> priority) {
-        int i = 0;
-        List<String> parts = priority.getValue();
-        Rfc3164 data       = new Rfc3164(priority.getKey());
-        String year        = "" + LocalDateTime.now().getYear();
-        String month       = mmm.get(parts.get(i++).toLowerCase());
-        String day         = parts.get(i++);
-        String time        = parts.get(i++);
-        String date        = String.format("%s %s %s %s", year, month, ("0" + day).substring(day.length() - 1), time);
-        data.date          = LocalDateTime.parse(date, DateTimeFormatter.ofPattern("yyyy MM dd HH:mm:ss"));
-        data.host          = parts.get(i++);
-        while (i < parts.size()) {
-            if (data.message == null) {
-                data.message = parts.get(i);
+    // 受信したバイト列を直接パースする(スレッドセーフではないため、スレッド毎にparser()で取得すること)
+    public static class Parser {
+        private byte[] escaped = new byte[1024];
+        private final String[] strings = new String[256];
+        private final byte[][] stringKeys = new byte[256][];
+        // 日時は秒単位でキャッシュする
+        private final byte[] rfc3164Key = new byte[15];
+        private ZoneId rfc3164Zone;
+        private int rfc3164Length;
+        private int rfc3164Year;
+        private LocalDateTime rfc3164Date;
+        private final byte[] rfc3339Key = new byte[19];
+        private LocalDateTime rfc3339Date;
+        // パース中の状態
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        public Rfc3164 parse(byte[] buf, int off, int len, String addr) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+            Integer priority = this.priority();
+            Rfc3164 data = null;
+            int message = -1;
+            if (priority != null) {
+                int header = this.pos;
+                try {
+                    if (this.version() > 0) {
+                        this.pos = header;
+                        data = this.rfc5424(priority, addr);
+                    } else {
+                        this.pos = header;
+                        data = this.rfc3164(priority, addr);
+                    }
+                    message = this.pos;
+                } catch (RuntimeException e) {
+                    data = null;
+                }
+            }
+            if (data == null) {
+                data = new Rfc3164(priority);
+                data.format = "unknown";
+                data.host = addr;
+            }
+            this.escape(data, off, message);
+            this.buf = null;
+            return data;
+        }
+
+        private Integer priority() {
+            if (this.pos >= this.end || this.buf[this.pos] != '<') return null;
+            int value = 0;
+            int i = this.pos + 1;
+            while (i < this.end && i - this.pos <= 3 && isDigit(this.buf[i])) {
+                value = value * 10 + (this.buf[i++] - '0');
+            }
+            if (i == this.pos + 1 || i >= this.end || this.buf[i] != '>' || value > 191) return null;
+            this.pos = i + 1;
+            return value;
+        }
+
+        // RFC5424のVERSION(1～3桁の数字+SP)、無い場合は0
+        private int version() {
+            int value = 0;
+            int i = this.pos;
+            while (i < this.end && i - this.pos < 3 && isDigit(this.buf[i])) {
+                value = value * 10 + (this.buf[i++] - '0');
+            }
+            if (i == this.pos || i >= this.end || this.buf[i] != ' ' || this.buf[this.pos] == '0') return 0;
+            this.pos = i;
+            return value;
+        }
+
+        private Rfc5424 rfc5424(Integer priority, String addr) {
+            Rfc5424 data    = new Rfc5424(priority);
+            data.version    = this.version();
+            this.space();
+            if (this.nil()) {
+                data.date   = null;
             } else {
-                data.message = data.message + " " + parts.get(i);
+                data.date   = this.rfc3339(data);
             }
-            i++;
+            this.space();
+            data.host       = this.token();
+            if (data.host == null) data.host = addr;
+            this.space();
+            data.app        = this.token();
+            this.space();
+            data.procid     = this.token();
+            this.space();
+            data.msgid      = this.token();
+            this.space();
+            data.structured = this.structured();
+            // MSGの前のSPは1つだけ読み飛ばし、UTF-8のBOMは除く
+            if (this.pos < this.end && this.buf[this.pos] == ' ') this.pos++;
+            if (this.end - this.pos >= 3 && this.buf[this.pos] == (byte) 0xEF && this.buf[this.pos + 1] == (byte) 0xBB && this.buf[this.pos + 2] == (byte) 0xBF) {
+                this.pos += 3;
+            }
+            return data;
+        }
+
+        private Rfc3164 rfc3164(Integer priority, String addr) {
+            Rfc3164 data = new Rfc3164(priority);
+            data.zone    = zone(addr);
+            if (this.end - this.pos > 5 && isDigit(this.buf[this.pos]) && this.buf[this.pos + 4] == ' ') {
+                // 年の付いた日時(yyyy Mmm dd hh:mm:ss、RFC3164 5.4の例)
+                int year = this.digits(this.pos, 4);
+                this.pos += 5;
+                data.date = this.rfc3164Date(data.zone, year);
+                this.timezone(data);
+            } else if (this.pos < this.end && isDigit(this.buf[this.pos])) {
+                // RFC3164の形式でもRFC3339の日時を送ってくる実装がある(rsyslog等)
+                data.date = this.rfc3339(data);
+            } else {
+                data.date = this.rfc3164Date(data.zone, 0);
+                this.timezone(data);
+            }
+            this.space();
+            data.host    = this.token();
+            if (data.host == null) throw new IllegalArgumentException("hostname not found.");
+            if (this.pos < this.end && this.buf[this.pos] == ' ') this.pos++;
+            return data;
+        }
+
+        // 日時の後のTZ+h・TZ-h(UTCとの時差、RFC3164 5.4の例)、無い場合は何もしない
+        private void timezone(Rfc3164 data) {
+            int i = this.pos;
+            while (i < this.end && this.buf[i] == ' ') i++;
+            if (this.end - i < 4 || this.buf[i] != 'T' || this.buf[i + 1] != 'Z' || (this.buf[i + 2] != '+' && this.buf[i + 2] != '-')) return;
+            int j = i + 3;
+            int hours = 0;
+            while (j < this.end && j - i < 5 && isDigit(this.buf[j])) hours = hours * 10 + (this.buf[j++] - '0');
+            if (j == i + 3 || hours > 18 || (j < this.end && this.buf[j] != ' ')) return;
+            data.zone = ZoneOffset.ofHours(this.buf[i + 2] == '+' ? hours : -hours);
+            this.pos = j;
         }
-        return data;
-    }
 
-    // TODO: ちゃんとパースする
-    public static Rfc5424 parseRfc5424(Map.Entry<Integer, List<String>> priority) {
-        int i = 0;
-        List<String> parts = priority.getValue();
-        Rfc5424 data       = new Rfc5424(priority.getKey());
-        data.version       = Integer.valueOf(parts.get(i++));
-        ZonedDateTime date = ZonedDateTime.parse(parts.get(i++));
-        data.date          = date.toLocalDateTime();
-        data.zone          = date.getZone();
-        data.host          = parts.get(i++);
-        data.app           = parts.get(i++);
-        data.procid        = parts.get(i++);
-        data.msgid         = parts.get(i++);
-        data.structured    = new ArrayList<>();
-        if (!"-".equals(parts.get(i))) {
-            while (i < parts.size()) {
-                String part = parts.get(i);
-                if (part.startsWith("[")) part = part.substring(1);
-                if (part.endsWith("]")) part = part.substring(0, part.length() - 1);
-                data.structured.add(part);
-                if (parts.get(i).endsWith("]")) break;
-                i++;
+        // Mmm dd hh:mm:ss (ddは1桁の場合は先頭がSP、SP無しの1桁も許容)、yearが0の場合は受信時の年
+        private LocalDateTime rfc3164Date(ZoneId zone, int year) {
+            if (this.end - this.pos < 14) throw new IllegalArgumentException("illegal timestamp.");
+            int length = this.buf[this.pos + 5] == ' ' ? 14 : 15;
+            if (this.end - this.pos < length) throw new IllegalArgumentException("illegal timestamp.");
+            if (this.rfc3164Date == null || this.rfc3164Zone != zone || this.rfc3164Length != length || this.rfc3164Year != year
+                || !Arrays.equals(this.buf, this.pos, this.pos + length, this.rfc3164Key, 0, length)) {
+                int month = month(this.buf[this.pos], this.buf[this.pos + 1], this.buf[this.pos + 2]);
+                if (this.buf[this.pos + 3] != ' ') throw new IllegalArgumentException("illegal timestamp.");
+                int day = length == 14
+                    ? digit(this.buf[this.pos + 4])
+                    : (this.buf[this.pos + 4] == ' ' ? 0 : digit(this.buf[this.pos + 4]) * 10) + digit(this.buf[this.pos + 5]);
+                int time = this.pos + length - 8;
+                if (this.buf[time - 1] != ' ' || this.buf[time + 2] != ':' || this.buf[time + 5] != ':') {
+                    throw new IllegalArgumentException("illegal timestamp.");
+                }
+                int hour = digits(time, 2);
+                int minute = digits(time + 3, 2);
+                int second = digits(time + 6, 2);
+                // 年が無い場合は受信時の年とし、未来の月になる場合(年末年始)は前年とする
+                LocalDateTime now = LocalDateTime.now(zone);
+                int date = year > 0 ? year : month > now.getMonthValue() + 1 ? now.getYear() - 1 : now.getYear();
+                this.rfc3164Date = LocalDateTime.of(date, month, day, hour, minute, second);
+                this.rfc3164Zone = zone;
+                this.rfc3164Length = length;
+                this.rfc3164Year = year;
+                System.arraycopy(this.buf, this.pos, this.rfc3164Key, 0, length);
+            }
+            this.pos += length;
+            // ミリ秒付きの実装がある
+            if (this.pos < this.end && this.buf[this.pos] == '.') {
+                this.pos++;
+                while (this.pos < this.end && isDigit(this.buf[this.pos])) this.pos++;
             }
+            return this.rfc3164Date;
         }
-        i++;
-        while (i < parts.size()) {
-            if (data.message == null) {
-                data.message = parts.get(i);
+
+        // yyyy-MM-ddTHH:mm:ss[.fraction](Z|+hh:mm|-hh:mm)
+        private LocalDateTime rfc3339(Rfc3164 data) {
+            if (this.end - this.pos < 20) throw new IllegalArgumentException("illegal timestamp.");
+            if (this.rfc3339Date == null || !Arrays.equals(this.buf, this.pos, this.pos + 19, this.rfc3339Key, 0, 19)) {
+                if (this.buf[this.pos + 4] != '-' || this.buf[this.pos + 7] != '-' || (this.buf[this.pos + 10] != 'T' && this.buf[this.pos + 10] != 't')
+                    || this.buf[this.pos + 13] != ':' || this.buf[this.pos + 16] != ':') {
+                    throw new IllegalArgumentException("illegal timestamp.");
+                }
+                this.rfc3339Date = LocalDateTime.of(
+                    digits(this.pos, 4),
+                    digits(this.pos + 5, 2),
+                    digits(this.pos + 8, 2),
+                    digits(this.pos + 11, 2),
+                    digits(this.pos + 14, 2),
+                    digits(this.pos + 17, 2)
+                );
+                System.arraycopy(this.buf, this.pos, this.rfc3339Key, 0, 19);
+            }
+            this.pos += 19;
+            int nano = 0;
+            if (this.pos < this.end && this.buf[this.pos] == '.') {
+                this.pos++;
+                int scale = 100_000_000;
+                int start = this.pos;
+                while (this.pos < this.end && isDigit(this.buf[this.pos])) {
+                    nano += digit(this.buf[this.pos++]) * scale;
+                    scale /= 10;
+                }
+                if (this.pos == start || this.pos - start > 9) throw new IllegalArgumentException("illegal timestamp.");
+            }
+            if (this.pos >= this.end) throw new IllegalArgumentException("illegal timestamp.");
+            byte sign = this.buf[this.pos];
+            if (sign == 'Z' || sign == 'z') {
+                data.zone = ZoneOffset.UTC;
+                this.pos++;
+            } else if ((sign == '+' || sign == '-') && this.end - this.pos >= 6 && this.buf[this.pos + 3] == ':') {
+                int hours = digits(this.pos + 1, 2);
+                int minutes = digits(this.pos + 4, 2);
+                data.zone = sign == '+' ? ZoneOffset.ofHoursMinutes(hours, minutes) : ZoneOffset.ofHoursMinutes(-hours, -minutes);
+                this.pos += 6;
             } else {
-                data.message = data.message + " " + parts.get(i);
+                throw new IllegalArgumentException("illegal timestamp.");
             }
-            i++;
+            return nano == 0 ? this.rfc3339Date : this.rfc3339Date.withNano(nano);
+        }
+
+        // STRUCTURED-DATA("-"または[...]の連続、値の中の\" \] \\はエスケープ)
+        private List<String> structured() {
+            List<String> result = new ArrayList<>();
+            if (this.nil()) return result;
+            if (this.pos >= this.end || this.buf[this.pos] != '[') throw new IllegalArgumentException("illegal structured data.");
+            while (this.pos < this.end && this.buf[this.pos] == '[') {
+                int start = ++this.pos;
+                boolean quoted = false;
+                while (true) {
+                    if (this.pos >= this.end) throw new IllegalArgumentException("illegal structured data.");
+                    byte b = this.buf[this.pos];
+                    if (quoted && b == '\\') {
+                        this.pos += 2;
+                        continue;
+                    }
+                    if (b == '"') quoted = !quoted;
+                    if (!quoted && b == ']') break;
+                    this.pos++;
+                }
+                result.add(new String(this.buf, start, this.pos - start, StandardCharsets.UTF_8));
+                this.pos++;
+            }
+            return result;
+        }
+
+        // SPで区切られた値、NILVALUEの場合はnull
+        private String token() {
+            int start = this.pos;
+            while (this.pos < this.end && this.buf[this.pos] != ' ') this.pos++;
+            if (this.pos == start) throw new IllegalArgumentException("illegal header.");
+            if (this.pos - start == 1 && this.buf[start] == '-') return null;
+            return this.string(start, this.pos);
+        }
+
+        private boolean nil() {
+            if (this.pos < this.end && this.buf[this.pos] == '-' && (this.pos + 1 == this.end || this.buf[this.pos + 1] == ' ')) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        // ヘッダの区切りのSP(連続する場合も許容)
+        private void space() {
+            if (this.pos >= this.end || this.buf[this.pos] != ' ') throw new IllegalArgumentException("illegal header.");
+            while (this.pos < this.end && this.buf[this.pos] == ' ') this.pos++;
+        }
+
+        // ホスト名等の繰り返し出現する値は文字列を使い回す
+        private String string(int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) hash = 31 * hash + this.buf[i];
+            int slot = (hash ^ (hash >>> 16)) & (this.strings.length - 1);
+            byte[] key = this.stringKeys[slot];
+            if (key != null && Arrays.equals(key, 0, key.length, this.buf, start, end)) {
+                return this.strings[slot];
+            }
+            String value = new String(this.buf, start, end - start, StandardCharsets.UTF_8);
+            this.stringKeys[slot] = Arrays.copyOfRange(this.buf, start, end);
+            this.strings[slot] = value;
+            return value;
+        }
+
+        // 全体をエスケープしてrawとし、MSG部分(message >= 0の場合)をmessageとする
+        private void escape(Rfc3164 data, int off, int message) {
+            if (this.escaped.length < (this.end - off) * 2) this.escaped = new byte[(this.end - off) * 2];
+            int n = 0;
+            int start = 0;
+            boolean ascii = true;
+            for (int i = off; i < this.end; i++) {
+                if (i == message) start = n;
+                byte b = this.buf[i];
+                switch (b) {
+                    case '\\': this.escaped[n++] = '\\'; this.escaped[n++] = '\\'; break;
+                    case '\r': this.escaped[n++] = '\\'; this.escaped[n++] = 'r'; break;
+                    case '\n': this.escaped[n++] = '\\'; this.escaped[n++] = 'n'; break;
+                    case '\t': this.escaped[n++] = '\\'; this.escaped[n++] = 't'; break;
+                    default:
+                        if (b < 0 && (message < 0 || i < message)) ascii = false;
+                        this.escaped[n++] = b;
+                        break;
+                }
+            }
+            if (message == this.end) start = n;
+            data.raw = new String(this.escaped, 0, n, StandardCharsets.UTF_8);
+            if (message < 0) {
+                data.message = data.raw;
+            } else if (ascii) {
+                // ヘッダがASCIIのみの場合は文字位置とバイト位置が一致する
+                data.message = data.raw.substring(start);
+            } else {
+                data.message = new String(this.escaped, start, n - start, StandardCharsets.UTF_8);
+            }
+        }
+
+        private int digits(int start, int length) {
+            int value = 0;
+            for (int i = start; i < start + length; i++) {
+                value = value * 10 + digit(this.buf[i]);
+            }
+            return value;
         }
-        return data;
     }
 
-    public static Map.Entry<Integer, List<String>> parsePriority(String log) {
-        int start = log.indexOf("<");
-        int end   = log.indexOf(">");
-        String priority = log.substring(start + 1, end);
-        return Map.entry(
-            Integer.valueOf(priority),
-            Arrays.asList(log.substring(end + 1).split(" ")).stream().filter(x -> !x.isEmpty()).toList()
-        );
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
     }
 
-    private static boolean isNumber(String value) {
-        try {
-            Integer.valueOf(value);
-            return true;
-        } catch(NumberFormatException e) {
-            return false;
+    private static int digit(byte b) {
+        if (!isDigit(b)) throw new IllegalArgumentException("illegal digit.");
+        return b - '0';
+    }
+
+    private static int month(byte a, byte b, byte c) {
+        switch (((a | 0x20) << 16) | ((b | 0x20) << 8) | (c | 0x20)) {
+            case ('j' << 16) | ('a' << 8) | 'n': return 1;
+            case ('f' << 16) | ('e' << 8) | 'b': return 2;
+            case ('m' << 16) | ('a' << 8) | 'r': return 3;
+            case ('a' << 16) | ('p' << 8) | 'r': return 4;
+            case ('m' << 16) | ('a' << 8) | 'y': return 5;
+            case ('j' << 16) | ('u' << 8) | 'n': return 6;
+            case ('j' << 16) | ('u' << 8) | 'l': return 7;
+            case ('a' << 16) | ('u' << 8) | 'g': return 8;
+            case ('s' << 16) | ('e' << 8) | 'p': return 9;
+            case ('o' << 16) | ('c' << 8) | 't': return 10;
+            case ('n' << 16) | ('o' << 8) | 'v': return 11;
+            case ('d' << 16) | ('e' << 8) | 'c': return 12;
+            default: throw new IllegalArgumentException("illegal month.");
         }
     }
 
     public static void main(String[] args) throws SyslogParseException, FileNotFoundException, IOException {
-        // TODO: RFCのとおりパースできないパターンがある
         for (String arg: args) {
             try (BufferedReader reader = new BufferedReader(new FileReader(arg))) {
                 while (true) {
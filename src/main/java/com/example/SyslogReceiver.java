@@ -4,8 +4,12 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
 import java.text.DecimalFormat;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
@@ -19,6 +23,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -28,10 +33,6 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.LongPoint;
-import org.apache.lucene.document.NumericDocValuesField;
-import org.apache.lucene.document.SortedDocValuesField;
-import org.apache.lucene.document.SortedNumericDocValuesField;
-import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -41,16 +42,12 @@ import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortedNumericSortField;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.spi.LoggingEventBuilder;
 
 import com.example.LuceneManager.LuceneReader;
-import com.example.SyslogParser.Facility;
 import com.example.SyslogParser.Rfc3164;
-import com.example.SyslogParser.Severity;
-import com.example.SyslogParser.SyslogParseException;
 
 import me.tongfei.progressbar.ProgressBar;
 
@@ -155,73 +152,160 @@ public class SyslogReceiver implements Runnable {
         }
     };
 
+
+    public static enum Mode {
+        // DatagramSocketを1スレッドで受信
+        socket,
+        // DatagramChannelを複数スレッドで受信
+        channel;
+    }
+
     private final int port;
     private final LuceneManager lucene;
+    private final Mode mode;
     private final DatagramSocket socket;
-    private boolean active = true;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final IngestBuffer buffer;
+    private final WriteAheadSpool spool;
+    private final SyslogTcpReceiver tcp;
+    private volatile boolean active = true;
     private List<Consumer<Document>> onReceive = new ArrayList<>();
 
-    public SyslogReceiver(int port, LuceneManager lucene) throws SocketException {
+    public SyslogReceiver(int port, LuceneManager lucene) throws IOException {
+        this(port, lucene, Mode.valueOf(Settings.getSyslogReceiver()));
+    }
+
+    public SyslogReceiver(int port, LuceneManager lucene, Mode mode) throws IOException {
         this.port = port;
         this.lucene = lucene;
-        this.socket = new DatagramSocket(this.port);
+        this.mode = mode;
+        this.spool = lucene.getSpool();
+        this.buffer = new IngestBuffer(this.spool);
+        this.tcp = Settings.getSyslogTcpPort() > 0 ? new SyslogTcpReceiver(Settings.getSyslogTcpPort(), this.buffer) : null;
+        switch (mode) {
+            case channel:
+                this.socket = null;
+                int threads = Settings.getSyslogReceiverThreads();
+                int rcvbuf = Settings.getSyslogReceiverRcvbuf();
+                // SO_REUSEPORTが使える場合はスレッド毎にchannelを作成し、カーネルに振り分けさせる
+                boolean reuseport = false;
+                try (DatagramChannel channel = DatagramChannel.open()) {
+                    reuseport = threads > 1 && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                }
+                for (int i = 0; i < (reuseport ? threads : 1); i++) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    if (reuseport) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    if (rcvbuf > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, rcvbuf);
+                    channel.bind(new InetSocketAddress(this.port));
+                    this.channels.add(channel);
+                }
+                break;
+            case socket:
+            default:
+                this.socket = new DatagramSocket(this.port);
+                break;
+        }
     }
 
     public void stop() {
         this.active = false;
-        this.socket.close();
+        if (this.tcp != null) this.tcp.stop();
+        if (this.socket != null) this.socket.close();
+        for (DatagramChannel channel: this.channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.atError().log("SyslogReceiver close failed.", e);
+            }
+        }
     }
 
     public void addEventListener(Consumer<Document> onReceive) {
         this.onReceive.add(onReceive);
     }
 
+    public Map<String, Object> getBufferStats() {
+        return this.buffer.getStats();
+    }
+
+    public Map<String, Map<String, Long>> getSourceStats() {
+        return this.buffer.getSourceStats();
+    }
+
+    public Map<String, Object> getTcpStats() {
+        return this.tcp != null ? this.tcp.getStats() : null;
+    }
+
     @Override
     public void run() {
-        // TODO: non-blocking, thread
+        logger.atInfo().setMessage(
+            "SyslogReceiver start."
+        ).addKeyValue(
+            "syslog port", this.port
+        ).addKeyValue(
+            "mode", this.mode
+        ).addKeyValue(
+            "lucene index dir", lucene.getDirectory()
+        ).log();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Settings.getSyslogReceiverWorkers(); i++) {
+            workers.add(new Thread(() -> {
+                IngestBuffer.Handler handler = slot -> this.receive(
+                    slot.timestamp,
+                    slot.addr,
+                    slot.port,
+                    slot.seq,
+                    slot.data,
+                    slot.length
+                );
+                while (true) {
+                    try {
+                        if (!this.buffer.take(handler)) break;
+                    } catch (Exception e) {
+                        logger.atError().log("SyslogReceiver parse failed.", e);
+                    }
+                }
+            }, "SyslogReceiver-worker-" + i));
+        }
+        for (Thread thread: workers) thread.start();
+        Thread tcpWorker = new Thread(this.tcp != null ? this.tcp : () -> {}, "SyslogTcpReceiver");
+        tcpWorker.start();
+        switch (this.mode) {
+            case channel:
+                this.runChannel();
+                break;
+            case socket:
+            default:
+                this.runSocket();
+                break;
+        }
+        // 受信を停止した後、バッファに残っているパケットを処理してから終了
+        try {
+            tcpWorker.join();
+            this.buffer.stop();
+            for (Thread thread: workers) thread.join();
+            this.buffer.close();
+            logger.atInfo().log("SyslogReceiver stop.");
+        } catch (Exception e) {
+            logger.atError().log("SyslogReceiver stop failed.", e);
+        }
+    }
+
+    private void runSocket() {
         byte[] buf = new byte[65535];
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
         try {
-            logger.atInfo().setMessage(
-                "SyslogReceiver start."
-            ).addKeyValue(
-                "syslog port", this.port
-            ).addKeyValue(
-                "lucene index dir", lucene.getDirectory()
-            ).log();
             while (this.active) {
                 try {
                     socket.receive(packet);
-                    String message = new String(packet.getData(), 0, packet.getLength())
-                        .replace("\\", "\\\\")
-                        .replace("\r", "\\r")
-                        .replace("\n", "\\n")
-                        .replace("\t", "\\t");
-                    Function<LoggingEventBuilder, LoggingEventBuilder> log = (builder) -> {
-                        return builder.setMessage(
-                            message
-                        ).addKeyValue(
-                            LuceneFieldKeys.addr.name(), packet.getAddress().getHostAddress()
-                        ).addKeyValue(
-                            LuceneFieldKeys.port.name(), packet.getPort()
-                        );
-                    };
-                    try {
-                        // TODO; バッファリング
-                        Document doc = SyslogReceiver.parse(
-                            new Date().getTime(),
-                            packet.getAddress().getHostAddress(),
-                            packet.getPort(),
-                            message
-                        );
-                        for (Consumer<Document> listener: this.onReceive) {
-                            listener.accept(doc);
-                        }
-                        lucene.add(doc);
-                        log.apply(logger.atDebug()).log();
-                    } catch (IOException e) {
-                        log.apply(logger.atError()).log();
-                    }
+                    this.buffer.offer(
+                        new Date().getTime(),
+                        packet.getAddress().getHostAddress(),
+                        packet.getPort(),
+                        packet.getData(),
+                        0,
+                        packet.getLength()
+                    );
                 } catch (SocketException e) {
                     if (this.active) {
                         if (this.socket.isClosed()) {
@@ -232,73 +316,113 @@ public class SyslogReceiver implements Runnable {
                     }
                 }
             }
-            logger.atInfo().log("SyslogReceiver stop.");
         } catch (Exception e) {
             logger.atError().log("SyslogReceiver stop failed.", e);
         }
         if (!this.socket.isClosed()) this.socket.close();
     }
 
-    public static Document parse(long timestamp, String addr, int port, String message) throws InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
-        Supplier<Document> init = () -> {
-            Document doc = new Document();
-            try {
-                doc.add(LuceneFieldKeys.raw.field(message));
-                doc.add(LuceneFieldKeys.sort.field(timestamp));
-                doc.add(LuceneFieldKeys.timestamp.field(timestamp));
-                doc.add(LuceneFieldKeys.addr.field(addr));
-                doc.add(LuceneFieldKeys.port.field(port));
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            return doc;
+    private void runChannel() {
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < Settings.getSyslogReceiverThreads(); i++) {
+            DatagramChannel channel = this.channels.get(i % this.channels.size());
+            readers.add(new Thread(() -> {
+                ByteBuffer buf = ByteBuffer.allocateDirect(65535);
+                // SO_REUSEPORTの場合、読まなくなったchannelにもカーネルは振り分け続けるため、closeされるまで受信を続ける
+                while (this.active && channel.isOpen()) {
+                    try {
+                        buf.clear();
+                        InetSocketAddress addr = (InetSocketAddress) channel.receive(buf);
+                        buf.flip();
+                        this.buffer.offer(
+                            new Date().getTime(),
+                            addr.getAddress().getHostAddress(),
+                            addr.getPort(),
+                            buf
+                        );
+                    } catch (AsynchronousCloseException e) {
+                        // stop()によるclose
+                        break;
+                    } catch (Exception e) {
+                        if (this.active && channel.isOpen()) logger.atError().log("SyslogReceiver receive failed.", e);
+                    }
+                }
+            }, "SyslogReceiver-reader-" + i));
+        }
+        for (Thread thread: readers) thread.start();
+        try {
+            for (Thread thread: readers) thread.join();
+        } catch (InterruptedException e) {
+            logger.atError().log("SyslogReceiver stop failed.", e);
+        }
+    }
+
+    private void receive(long timestamp, String addr, int port, long seq, byte[] data, int length) {
+        // 受信したバイト列を直接パースする(エスケープもパース時に行う)
+        Rfc3164 log = SyslogParser.parser().parse(data, 0, length, addr);
+        Function<LoggingEventBuilder, LoggingEventBuilder> message = (builder) -> {
+            return builder.setMessage(
+                log.raw
+            ).addKeyValue(
+                LuceneFieldKeys.addr.name(), addr
+            ).addKeyValue(
+                LuceneFieldKeys.port.name(), port
+            );
         };
-        Document doc = init.get();
+        DocumentTemplate template = DocumentTemplate.acquire();
+        boolean queued = false;
         try {
-            Rfc3164 log = SyslogParser.parse(message);
-            doc.add(LuceneFieldKeys.facility.field(log.facility.name()));
-            doc.add(LuceneFieldKeys.severity.field(log.severity.name()));
-            doc.add(LuceneFieldKeys.host.field(log.host));
-            doc.add(LuceneFieldKeys.message.field(log.message));
-            doc.add(LuceneFieldKeys.format.field(log.format));
-            return doc;
-        } catch (SyslogParseException e) {
-            Integer priority = SyslogParser.parsePriority(message).getKey();
-            if (priority != null) {
-                doc.add(LuceneFieldKeys.facility.field(Facility.of(priority).name()));
-                doc.add(LuceneFieldKeys.severity.field(Severity.of(priority).name()));
+            Document doc = template.set(timestamp, addr, port, log);
+            template.seq(seq);
+            // listenerに渡すドキュメントは登録後に再利用されるため、呼び出し中のみ有効
+            for (Consumer<Document> listener: this.onReceive) {
+                listener.accept(doc);
             }
-            doc.add(LuceneFieldKeys.host.field(addr));
-            doc.add(LuceneFieldKeys.message.field(message));
-            doc.add(LuceneFieldKeys.format.field("unknown"));
-            return doc;
+            lucene.add(template);
+            queued = true;
+            if (logger.isDebugEnabled()) message.apply(logger.atDebug()).log();
+        } catch (IOException e) {
+            message.apply(logger.atError()).log();
         } finally {
-            // TODO: 処理を共通化、DocValuesFieldの必要性を見直し
-            doc.add(new SortedNumericDocValuesField(LuceneFieldKeys.sort.name(), timestamp));
-            doc.add(new StoredField(LuceneFieldKeys.timestamp.name(), timestamp));
-            doc.add(new NumericDocValuesField(LuceneFieldKeys.timestamp.name(), timestamp));
-            doc.add(new StoredField(LuceneFieldKeys.port.name(), port));
-            doc.add(new SortedDocValuesField(LuceneFieldKeys.port.name(), new BytesRef(ByteBuffer.allocate(4).putInt(port).array())));
-            for (LuceneFieldKeys field: Arrays.asList(LuceneFieldKeys.values()).stream().filter(field -> field.fieldClazz == StringField.class).toList()) {
-                doc.add(new SortedDocValuesField(field.name(), new BytesRef(doc.get(field.name()))));
+            // 登録できなかったレコードはspoolの未登録から外す(IndexBatcherへ渡した分は登録後に外す)
+            if (!queued) {
+                template.release();
+                if (this.spool != null) this.spool.done(seq);
             }
         }
     }
 
+    // 登録済みのraw(エスケープ済み)から再パースする(マイグレーション・インポート用)
+    public static Document parse(long timestamp, String addr, int port, String message) {
+        byte[] data = SyslogParser.unescape(message);
+        return parse(timestamp, addr, port, SyslogParser.parser().parse(data, 0, data.length, addr));
+    }
+
+    // 一括登録用(DocumentTemplateを返却しないため、呼び出し毎に別のドキュメントになる)
+    public static Document parse(long timestamp, String addr, int port, Rfc3164 log) {
+        return new DocumentTemplate().set(timestamp, addr, port, log);
+    }
+
     public static Map<String, String> toMap(Document doc, ZoneOffset offset) {
+        return toMap(doc, offset, null);
+    }
+
+    // fieldsを指定した場合はdatetimeとfieldsのフィールドだけを返す(docにはtimestampが必要)
+    public static Map<String, String> toMap(Document doc, ZoneOffset offset, Set<String> fields) {
         long timestamp = LuceneFieldKeys.timestamp.get(doc, Long.class);
         OffsetDateTime datetime = OffsetDateTime.ofInstant(new Date(timestamp).toInstant(), offset);
         return new LinkedHashMap<>() {{
             this.put("datetime", datetime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
             for (LuceneFieldKeys field: LuceneFieldKeys.values()) {
-                this.put(field.name(), doc.get(field.name()));
+                if (fields == null || fields.contains(field.name())) this.put(field.name(), doc.get(field.name()));
             }
         }};
     }
 
     public static void main(String[] args) throws InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ClassNotFoundException, IOException, ParseException, QueryNodeException  {
         try (
-            LuceneManager src = new LuceneManager(System.getProperty("lucene.migration.src", "index"));
+            // 移行元は読み取り専用で開く(保持期限による削除・書き込みをしない)
+            LuceneManager src = new LuceneManager(System.getProperty("lucene.migration.src", "index"), new ArrayList<>(), null, true);
             LuceneManager dst = new LuceneManager(System.getProperty("lucene.migration.dst", "migrated"));
             LuceneReader reader = src.getReader();
         ) {
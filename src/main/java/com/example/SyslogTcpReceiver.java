@@ -0,0 +1,216 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// RFC6587のoctet-counting及び改行区切りのsyslogをTCPで受信し、UDPと同じバッファへ渡す
+public class SyslogTcpReceiver implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int port;
+    private final IngestBuffer buffer;
+    private final ServerSocket server;
+    private final int frameSize;
+    private final Semaphore connections;
+    private final Map<Socket, Boolean> sockets = new ConcurrentHashMap<>();
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean active = true;
+
+    public SyslogTcpReceiver(int port, IngestBuffer buffer) throws IOException {
+        this(port, buffer, Settings.getSyslogTcpConnections(), Settings.getSyslogTcpFrame());
+    }
+
+    public SyslogTcpReceiver(int port, IngestBuffer buffer, int maxConnections, int frameSize) throws IOException {
+        this.port = port;
+        this.buffer = buffer;
+        this.frameSize = frameSize;
+        this.connections = new Semaphore(maxConnections);
+        this.server = new ServerSocket(port);
+    }
+
+    public void stop() {
+        this.active = false;
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            logger.atError().log("SyslogTcpReceiver close failed.", e);
+        }
+        for (Socket socket: this.sockets.keySet()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.atError().log("SyslogTcpReceiver close failed.", e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        logger.atInfo().addKeyValue("syslog tcp port", this.port).log("SyslogTcpReceiver start.");
+        while (this.active) {
+            try {
+                Socket socket = this.server.accept();
+                if (!this.connections.tryAcquire()) {
+                    this.rejected.incrementAndGet();
+                    logger.atWarn().addKeyValue(
+                        "addr", socket.getInetAddress().getHostAddress()
+                    ).log("SyslogTcpReceiver too many connections.");
+                    socket.close();
+                    continue;
+                }
+                this.accepted.incrementAndGet();
+                this.sockets.put(socket, true);
+                Thread.ofVirtual().name("SyslogTcpReceiver-" + socket.getRemoteSocketAddress()).start(() -> {
+                    try {
+                        this.read(socket);
+                    } finally {
+                        this.sockets.remove(socket);
+                        this.connections.release();
+                    }
+                });
+            } catch (SocketException e) {
+                if (this.active) logger.atError().log("SyslogTcpReceiver accept failed.", e);
+            } catch (Exception e) {
+                logger.atError().log("SyslogTcpReceiver accept failed.", e);
+            }
+        }
+        logger.atInfo().log("SyslogTcpReceiver stop.");
+    }
+
+    private void read(Socket socket) {
+        InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+        String addr = remote.getAddress().getHostAddress();
+        int port = remote.getPort();
+        byte[] buf = this.buffers.poll();
+        if (buf == null) buf = new byte[this.frameSize];
+        logger.atDebug().addKeyValue("addr", addr).addKeyValue("port", port).log("SyslogTcpReceiver connected.");
+        try (socket; InputStream input = socket.getInputStream()) {
+            int start = 0;
+            int end = 0;
+            // octet-countingで読み捨て中の残りバイト数
+            long skip = 0;
+            while (this.active) {
+                if (start > 0 && start == end) {
+                    start = 0;
+                    end = 0;
+                } else if (end == buf.length) {
+                    if (start > 0) {
+                        System.arraycopy(buf, start, buf, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    } else {
+                        // フレームがバッファに収まらない場合は切り詰めて登録し、残りを読み捨てる
+                        skip = this.truncate(buf, end, addr, port);
+                        start = 0;
+                        end = 0;
+                    }
+                }
+                int read = input.read(buf, end, buf.length - end);
+                if (read < 0) break;
+                end += read;
+                if (skip > 0) {
+                    int n = (int) Math.min(skip, end - start);
+                    start += n;
+                    skip -= n;
+                }
+                while (start < end) {
+                    int next = this.frame(buf, start, end, addr, port);
+                    if (next < 0) break;
+                    start = next;
+                }
+            }
+            if (start < end && skip == 0) {
+                // 接続終了時に改行の無い最後のフレームを登録
+                this.offer(buf, this.skipCount(buf, start, end), end, addr, port);
+            }
+        } catch (IOException e) {
+            if (this.active) logger.atDebug().addKeyValue("addr", addr).log("SyslogTcpReceiver read failed.", e);
+        } finally {
+            this.buffers.offer(buf);
+        }
+        logger.atDebug().addKeyValue("addr", addr).addKeyValue("port", port).log("SyslogTcpReceiver closed.");
+    }
+
+    // 1フレームを登録し、次のフレームの開始位置を返す(フレームが揃っていない場合は-1)
+    private int frame(byte[] buf, int start, int end, String addr, int port) throws IOException {
+        int i = start;
+        while (i < end && (buf[i] == '\n' || buf[i] == '\r' || buf[i] == 0)) i++;
+        if (i == end) return end;
+        if (buf[i] >= '1' && buf[i] <= '9') {
+            // octet-counting: MSG-LEN SP SYSLOG-MSG
+            int j = i;
+            long length = 0;
+            while (j < end && buf[j] >= '0' && buf[j] <= '9' && j - i < 10) {
+                length = length * 10 + (buf[j] - '0');
+                j++;
+            }
+            if (j == end) return -1;
+            if (buf[j] == ' ') {
+                // バッファに収まらないフレームはバッファが埋まった時点でtruncateで処理する
+                if (j + 1 + length > end) return -1;
+                this.offer(buf, j + 1, (int) (j + 1 + length), addr, port);
+                return (int) (j + 1 + length);
+            }
+        }
+        // non-transparent-framing: LF(またはNUL)区切り
+        for (int j = i; j < end; j++) {
+            if (buf[j] == '\n' || buf[j] == 0) {
+                int last = j > i && buf[j - 1] == '\r' ? j - 1 : j;
+                this.offer(buf, i, last, addr, port);
+                return j + 1;
+            }
+        }
+        return -1;
+    }
+
+    private long truncate(byte[] buf, int end, String addr, int port) throws IOException {
+        int i = this.skipCount(buf, 0, end);
+        if (i > 0 && i < end && buf[i - 1] == ' ') {
+            long length = 0;
+            for (int j = 0; j < i - 1; j++) length = length * 10 + (buf[j] - '0');
+            this.offer(buf, i, end, addr, port);
+            return Math.max(0, length - (end - i));
+        }
+        this.offer(buf, 0, end, addr, port);
+        // 改行区切りの場合は次の改行まで読み捨てられないため、続きは別フレームとして登録する
+        return 0;
+    }
+
+    // octet-countingのMSG-LEN部分を読み飛ばした位置を返す
+    private int skipCount(byte[] buf, int start, int end) {
+        int i = start;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') i++;
+        return i > start && i < end && buf[i] == ' ' ? i + 1 : start;
+    }
+
+    private void offer(byte[] buf, int start, int end, String addr, int port) throws IOException {
+        if (end <= start) return;
+        this.buffer.offer(new Date().getTime(), addr, port, buf, start, end - start);
+    }
+
+    public Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("connections", sockets.size());
+            this.put("accepted", accepted.get());
+            this.put("rejected", rejected.get());
+        }};
+    }
+}
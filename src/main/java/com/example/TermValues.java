@@ -0,0 +1,90 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.MultiSortedDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.packed.PackedInts;
+
+// フィールド(SortedDocValues)の値の一覧を値の順に返す(前方一致・件数の上限・値毎のドキュメント数)
+// 全セグメントの値を統合したOrdinalMapと値毎のドキュメント数はreaderの世代毎に保持する
+public class TermValues {
+
+    private static class Field {
+        private final OrdinalMap map;
+        // 値(global ordinal)毎のドキュメント数(初めて必要になった時に数える)
+        private long[] counts;
+
+        private Field(OrdinalMap map) {
+            this.map = map;
+        }
+    }
+
+    private List<IndexReader.CacheKey> keys;
+    private final Map<String, Field> fields = new HashMap<>();
+
+    // countsがfalseの場合は件数をnullにする
+    public synchronized Map<BytesRef, Long> get(IndexReader reader, List<IndexReader.CacheKey> keys, String field, BytesRef prefix, int limit, boolean counts) throws IOException {
+        if (!keys.equals(this.keys)) {
+            this.fields.clear();
+            this.keys = keys;
+        }
+        List<LeafReaderContext> leaves = reader.leaves();
+        SortedDocValues[] values = new SortedDocValues[leaves.size()];
+        int[] starts = new int[leaves.size() + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = DocValues.getSorted(leaves.get(i).reader(), field);
+            starts[i] = leaves.get(i).docBase;
+        }
+        starts[values.length] = reader.maxDoc();
+        Map<BytesRef, Long> result = new LinkedHashMap<>();
+        if (values.length == 0 || limit <= 0) return result;
+        Field cached = this.fields.get(field);
+        if (cached == null) {
+            cached = new Field(OrdinalMap.build(null, values, PackedInts.DEFAULT));
+            this.fields.put(field, cached);
+        }
+        if (counts && cached.counts == null) cached.counts = count(leaves, field, cached.map);
+        TermsEnum terms = new MultiSortedDocValues(values, starts, cached.map, 0).termsEnum();
+        if (terms.seekCeil(prefix) == TermsEnum.SeekStatus.END) return result;
+        do {
+            BytesRef term = terms.term();
+            if (!StringHelper.startsWith(term, prefix)) break;
+            if (counts) {
+                long count = cached.counts[(int) terms.ord()];
+                // 削除済みのドキュメントだけの値は返さない
+                if (count > 0) result.put(BytesRef.deepCopyOf(term), count);
+            } else {
+                result.put(BytesRef.deepCopyOf(term), null);
+            }
+        } while (result.size() < limit && terms.next() != null);
+        return result;
+    }
+
+    private static long[] count(List<LeafReaderContext> leaves, String field, OrdinalMap map) throws IOException {
+        long[] counts = new long[(int) map.getValueCount()];
+        for (int i = 0; i < leaves.size(); i++) {
+            SortedDocValues values = DocValues.getSorted(leaves.get(i).reader(), field);
+            LongValues ords = map.getGlobalOrds(i);
+            Bits live = leaves.get(i).reader().getLiveDocs();
+            for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+                if (live == null || live.get(doc)) counts[(int) ords.get(values.ordValue())]++;
+            }
+        }
+        return counts;
+    }
+}
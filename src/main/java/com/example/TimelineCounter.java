@@ -0,0 +1,149 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 一致したドキュメントをtimestampのwidth毎の区間で数える(start + i * width ～ start + (i + 1) * width - 1がi番目)
+// セグメント毎の配列はPointValuesの最小・最大値の区間だけを確保する
+public class TimelineCounter implements CollectorManager<TimelineCounter.Counter, TimelineCounter.Histogram> {
+
+    public static record Histogram(long start, long width, long[] counts) {
+        public long total() {
+            long total = 0;
+            for (long count: this.counts) total += count;
+            return total;
+        }
+    }
+
+    private final long start;
+    private final long width;
+    private final int size;
+
+    public TimelineCounter(long start, long width, int size) {
+        this.start = start;
+        this.width = width;
+        this.size = size;
+    }
+
+    @Override
+    public Counter newCollector() {
+        return new Counter();
+    }
+
+    @Override
+    public Histogram reduce(Collection<Counter> collectors) {
+        Histogram result = new Histogram(this.start, this.width, new long[this.size]);
+        for (Counter collector: collectors) collector.addTo(result);
+        return result;
+    }
+
+    // セグメント単体で検索する場合に使用する(セグメント毎のCounterをreduceでまとめる)
+    public CollectorManager<Counter, Counter> leaf() {
+        return new CollectorManager<>() {
+            @Override
+            public Counter newCollector() {
+                return TimelineCounter.this.newCollector();
+            }
+
+            @Override
+            public Counter reduce(Collection<Counter> collectors) {
+                return collectors.iterator().next();
+            }
+        };
+    }
+
+    long start() {
+        return this.start;
+    }
+
+    long width() {
+        return this.width;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    long bucket(long timestamp) {
+        return Math.floorDiv(timestamp - this.start, this.width);
+    }
+
+    // セグメントのtimestampの最小・最大値が含まれる区間の範囲(最初と最後の区間の番号)
+    int[] buckets(LeafReaderContext context) throws IOException {
+        int first = 0;
+        int last = this.size - 1;
+        PointValues points = context.reader().getPointValues(LuceneFieldKeys.timestamp.name());
+        if (points != null) {
+            first = (int) Math.max(first, this.bucket(LongPoint.decodeDimension(points.getMinPackedValue(), 0)));
+            last = (int) Math.min(last, this.bucket(LongPoint.decodeDimension(points.getMaxPackedValue(), 0)));
+        }
+        return new int[] {first, last};
+    }
+
+    public class Counter extends SimpleCollector {
+
+        // 区間毎の件数(from番目の区間から)
+        private long[] counts = new long[0];
+        private int from = 0;
+        private long[] current;
+        private int currentFrom;
+        private NumericDocValues values;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            this.values = DocValues.getNumeric(context.reader(), LuceneFieldKeys.timestamp.name());
+            int[] buckets = buckets(context);
+            this.currentFrom = buckets[0];
+            this.current = new long[Math.max(0, buckets[1] - buckets[0] + 1)];
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (!this.values.advanceExact(doc)) return;
+            long index = bucket(this.values.longValue()) - this.currentFrom;
+            if (index >= 0 && index < this.current.length) this.current[(int) index]++;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            // セグメントが区間の外にある場合(範囲が空)はまとめない
+            if (this.current.length == 0) {
+                this.current = null;
+                return;
+            }
+            if (this.counts.length == 0) {
+                this.counts = this.current;
+                this.from = this.currentFrom;
+            } else {
+                int first = Math.min(this.from, this.currentFrom);
+                int last = Math.max(this.from + this.counts.length, this.currentFrom + this.current.length);
+                long[] merged = new long[last - first];
+                for (int i = 0; i < this.counts.length; i++) merged[this.from - first + i] += this.counts[i];
+                for (int i = 0; i < this.current.length; i++) merged[this.currentFrom - first + i] += this.current[i];
+                this.counts = merged;
+                this.from = first;
+            }
+            this.current = null;
+        }
+
+        private void addTo(Histogram result) {
+            for (int i = 0; i < this.counts.length; i++) result.counts()[this.from + i] += this.counts[i];
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
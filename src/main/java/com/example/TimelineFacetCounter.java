@@ -0,0 +1,148 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.BytesRef;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 一致したドキュメントをtimestampの区間×フィールドの値で数える(区間はTimelineCounterと同じ)
+// 数える値(上位top件)はFacetCounterの件数からtop()で先に決め、それ以外の値はotherにまとめる
+// セグメント毎の配列は(値の件数 + 1)×区間数だけを確保する(値の種類が多いフィールドでも増えない)
+public class TimelineFacetCounter implements CollectorManager<TimelineFacetCounter.Counter, TimelineFacetCounter.Matrix> {
+
+    // counts[i]はvalues[i]の区間毎の件数
+    public static record Matrix(long start, long width, List<BytesRef> values, long[][] counts, long[] other) {}
+
+    // セグメント毎の値毎・区間毎の件数(from番目の区間から、最後の行はother、件数の無い行はnull)
+    private static record Part(int from, long[][] rows) {}
+
+    private final TimelineCounter timeline;
+    private final String field;
+    private final List<BytesRef> values;
+
+    public TimelineFacetCounter(long start, long width, int size, String field, List<BytesRef> values) {
+        this.timeline = new TimelineCounter(start, width, size);
+        this.field = field;
+        this.values = values;
+    }
+
+    // 件数の多い順(同じ件数は値の順)に上位top件の値
+    public static List<BytesRef> top(Map<BytesRef, Long> counts, int top) {
+        return counts.entrySet().stream().sorted(
+            (a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : Long.compare(b.getValue(), a.getValue())
+        ).limit(
+            top
+        ).map(
+            entry -> entry.getKey()
+        ).toList();
+    }
+
+    @Override
+    public Counter newCollector() {
+        return new Counter();
+    }
+
+    // セグメント単体で検索する場合に使用する(セグメント毎のCounterをreduceでまとめる)
+    public CollectorManager<Counter, Counter> leaf() {
+        return new CollectorManager<>() {
+            @Override
+            public Counter newCollector() {
+                return TimelineFacetCounter.this.newCollector();
+            }
+
+            @Override
+            public Counter reduce(Collection<Counter> collectors) {
+                return collectors.iterator().next();
+            }
+        };
+    }
+
+    @Override
+    public Matrix reduce(Collection<Counter> collectors) {
+        int size = this.timeline.size();
+        long[][] counts = new long[this.values.size()][size];
+        long[] other = new long[size];
+        for (Counter collector: collectors) {
+            for (Part part: collector.parts) {
+                for (int i = 0; i < part.rows().length; i++) {
+                    long[] row = part.rows()[i];
+                    if (row == null) continue;
+                    long[] dst = i < counts.length ? counts[i] : other;
+                    for (int j = 0; j < row.length; j++) dst[part.from() + j] += row[j];
+                }
+            }
+        }
+        return new Matrix(this.timeline.start(), this.timeline.width(), this.values, counts, other);
+    }
+
+    public class Counter extends SimpleCollector {
+
+        private final List<Part> parts = new ArrayList<>();
+        private NumericDocValues timestamps;
+        private SortedDocValues docValues;
+        private int from;
+        private int length;
+        // 数える値のセグメント内のordinal(昇順)と、その値の行
+        private int[] ords;
+        private int[] indexes;
+        private long[][] rows;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            this.timestamps = DocValues.getNumeric(context.reader(), LuceneFieldKeys.timestamp.name());
+            this.docValues = DocValues.getSorted(context.reader(), field);
+            int[] buckets = timeline.buckets(context);
+            this.from = buckets[0];
+            this.length = Math.max(0, buckets[1] - buckets[0] + 1);
+            List<int[]> ords = new ArrayList<>();
+            for (int i = 0; i < values.size(); i++) {
+                int ord = this.docValues.lookupTerm(values.get(i));
+                if (ord >= 0) ords.add(new int[] {ord, i});
+            }
+            ords.sort((a, b) -> Integer.compare(a[0], b[0]));
+            this.ords = new int[ords.size()];
+            this.indexes = new int[ords.size()];
+            for (int i = 0; i < this.ords.length; i++) {
+                this.ords[i] = ords.get(i)[0];
+                this.indexes[i] = ords.get(i)[1];
+            }
+            // 件数のある行だけを確保する
+            this.rows = new long[values.size() + 1][];
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (!this.timestamps.advanceExact(doc) || !this.docValues.advanceExact(doc)) return;
+            long index = timeline.bucket(this.timestamps.longValue()) - this.from;
+            if (index < 0 || index >= this.length) return;
+            int found = Arrays.binarySearch(this.ords, this.docValues.ordValue());
+            int row = found >= 0 ? this.indexes[found] : values.size();
+            if (this.rows[row] == null) this.rows[row] = new long[this.length];
+            this.rows[row][(int) index]++;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (this.length > 0) this.parts.add(new Part(this.from, this.rows));
+            this.rows = null;
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
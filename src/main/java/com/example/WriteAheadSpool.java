@@ -0,0 +1,226 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 受信したパケット(解析前のバイト列)をバッファへ入れる時点で追記するファイル(メモリマップ)、起動時にcommitされていない分を再登録する
+// ファイルを半分ずつ交互に使い、もう半分のレコードが全てcommit済みになったら先頭から上書きする
+// レコード: 長さ(int) CRC32C(int) seq(long) timestamp(long) port(int) addrの長さ(short) addr data
+public class WriteAheadSpool implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(WriteAheadSpool.class);
+
+    private static final int HEADER = 4 + 4;
+    private static final int BODY = 8 + 8 + 4 + 2;
+
+    public static interface Handler {
+        void handle(long seq, long timestamp, String addr, int port, byte[] data) throws Exception;
+    }
+
+    private final String path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int half;
+    private final CRC32C crc = new CRC32C();
+    // 追記中の半分(0または1)と追記位置
+    private int active = 0;
+    private int pos = 0;
+    // 半分毎の最後のseq(空の場合は0)
+    private final long[] last = new long[2];
+    private long seq = 0;
+    private long committed = 0;
+    // 追記後、登録(または破棄)が終わっていないseq
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+    // 前回のsync以降に追記した範囲
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = 0;
+    private boolean full = false;
+    private long appended = 0;
+    private long replayed = 0;
+    private long overflowed = 0;
+    private long switches = 0;
+
+    public WriteAheadSpool(String path, long size) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(
+            Paths.get(path),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        this.half = (int) (Math.min(size, Integer.MAX_VALUE) / 2);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.half * 2L);
+        logger.atInfo().addKeyValue("path", path).addKeyValue("size", this.buffer.capacity()).log("WriteAheadSpool opened.");
+    }
+
+    // committedより後のレコードをseqの順に再登録し、最後のseqを返す
+    // committedより後でも登録済みのレコードがある場合は重複して登録される(commit後に消えるよりは重複を許す)
+    public synchronized long replay(long committed, Handler handler) throws Exception {
+        List<long[]> records = new ArrayList<>();
+        int[] ends = new int[2];
+        for (int h = 0; h < 2; h++) {
+            int start = h * this.half;
+            int pos = start;
+            long prev = 0;
+            while (pos + HEADER <= start + this.half) {
+                int length = this.buffer.getInt(pos);
+                if (length < BODY || pos + HEADER + length > start + this.half) break;
+                this.crc.reset();
+                this.crc.update(this.buffer.slice(pos + HEADER, length));
+                if ((int) this.crc.getValue() != this.buffer.getInt(pos + 4)) break;
+                long seq = this.buffer.getLong(pos + HEADER);
+                // 上書き前の古いレコードはseqが増加しない
+                if (seq <= prev) break;
+                prev = seq;
+                records.add(new long[] {seq, pos});
+                pos += HEADER + length;
+            }
+            ends[h] = pos;
+            this.last[h] = prev;
+        }
+        records.sort(Comparator.comparingLong(record -> record[0]));
+        this.seq = committed;
+        for (long[] record: records) {
+            long seq = record[0];
+            if (seq > committed) {
+                int pos = (int) record[1];
+                int length = this.buffer.getInt(pos);
+                long timestamp = this.buffer.getLong(pos + HEADER + 8);
+                int port = this.buffer.getInt(pos + HEADER + 16);
+                int addrLength = this.buffer.getShort(pos + HEADER + 20);
+                byte[] addr = new byte[addrLength];
+                this.buffer.get(pos + HEADER + BODY, addr);
+                byte[] data = new byte[length - BODY - addrLength];
+                this.buffer.get(pos + HEADER + BODY + addrLength, data);
+                handler.handle(seq, timestamp, new String(addr, StandardCharsets.UTF_8), port, data);
+                this.replayed++;
+            }
+            this.seq = Math.max(this.seq, seq);
+        }
+        // 新しい方の半分の続きから追記する
+        this.active = this.last[1] > this.last[0] ? 1 : 0;
+        this.pos = ends[this.active];
+        this.committed = committed;
+        if (this.replayed > 0) {
+            logger.atInfo().addKeyValue("path", this.path).addKeyValue("records", this.replayed).log("WriteAheadSpool replayed.");
+        }
+        return this.seq;
+    }
+
+    // 追記したレコードのseqを返す(空きが無い場合は-1)
+    // 返したseqは登録または破棄した後にdone()で通知すること
+    public synchronized long append(long timestamp, String addr, int port, ByteBuffer src) {
+        byte[] host = addr.getBytes(StandardCharsets.UTF_8);
+        int length = BODY + host.length + src.remaining();
+        int end = (this.active + 1) * this.half;
+        // 終端の長さ0を書くための4バイトを残す
+        if (this.pos + HEADER + length + 4 > end) {
+            int other = 1 - this.active;
+            if (this.last[other] > this.committed || HEADER + length + 4 > this.half) {
+                this.overflowed++;
+                if (!this.full) logger.atWarn().addKeyValue("path", this.path).log("WriteAheadSpool full.");
+                this.full = true;
+                return -1;
+            }
+            this.active = other;
+            this.pos = other * this.half;
+            this.last[other] = 0;
+            this.switches++;
+        }
+        this.full = false;
+        int pos = this.pos;
+        long seq = this.seq + 1;
+        this.buffer.putLong(pos + HEADER, seq);
+        this.buffer.putLong(pos + HEADER + 8, timestamp);
+        this.buffer.putInt(pos + HEADER + 16, port);
+        this.buffer.putShort(pos + HEADER + 20, (short) host.length);
+        this.buffer.put(pos + HEADER + BODY, host);
+        this.buffer.put(pos + HEADER + BODY + host.length, src, src.position(), src.remaining());
+        this.buffer.putInt(pos + HEADER + length, 0);
+        this.crc.reset();
+        this.crc.update(this.buffer.slice(pos + HEADER, length));
+        this.buffer.putInt(pos + 4, (int) this.crc.getValue());
+        // 長さを最後に書き、書き込み途中のレコードは読まれないようにする
+        this.buffer.putInt(pos, length);
+        this.pos = pos + HEADER + length;
+        this.dirtyFrom = Math.min(this.dirtyFrom, pos);
+        this.dirtyTo = Math.max(this.dirtyTo, this.pos + 4);
+        this.seq = seq;
+        this.last[this.active] = seq;
+        this.pending.add(seq);
+        this.appended++;
+        return seq;
+    }
+
+    // レコードをindexへ登録した(または破棄した)
+    public void done(long seq) {
+        if (seq > 0) this.pending.remove(seq);
+    }
+
+    // commitに記録するseq(これ以前のレコードは全て登録または破棄済み)
+    public synchronized long watermark() {
+        Iterator<Long> first = this.pending.iterator();
+        return first.hasNext() ? first.next() - 1 : this.seq;
+    }
+
+    // watermark()の値でcommitした後に呼ぶ(以前のレコードしか無い半分は上書きできる)
+    public synchronized void commit(long seq) {
+        this.committed = Math.max(this.committed, seq);
+    }
+
+    // 追記中の半分が埋まる前に、もう半分を空けるためのcommitが必要
+    public synchronized boolean shouldCommit() {
+        return this.last[1 - this.active] > this.committed && this.pos - this.active * this.half > this.half / 2;
+    }
+
+    // 前回のsync以降に追記した範囲をディスクへ書き出す
+    public synchronized void sync() {
+        if (this.dirtyTo > this.dirtyFrom) {
+            this.buffer.force(this.dirtyFrom, Math.min(this.dirtyTo, this.buffer.capacity()) - this.dirtyFrom);
+        }
+        this.dirtyFrom = Integer.MAX_VALUE;
+        this.dirtyTo = 0;
+    }
+
+    public synchronized long getSeq() {
+        return this.seq;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        return new HashMap<>() {{
+            this.put("path", path);
+            this.put("capacity", buffer.capacity());
+            this.put("bytes", pos - active * half);
+            this.put("pending", pending.size());
+            this.put("appended", appended);
+            this.put("replayed", replayed);
+            this.put("overflowed", overflowed);
+            this.put("switches", switches);
+            this.put("seq", seq);
+            this.put("committed", committed);
+        }};
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.sync();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+public class FacetCounterTest {
+
+    private static final List<String> FIELDS = List.of(LuceneFieldKeys.host.name(), LuceneFieldKeys.severity.name());
+
+    private static TestIndex index() throws Exception {
+        return new TestIndex(18, new long[] {200, 0, 1000}, new long[] {300, 500, 3000}, new long[] {100, 5000, 6000});
+    }
+
+    // ドキュメントを1件ずつ数えた結果
+    private static Map<BytesRef, Long> expected(TestIndex index, Predicate<TestIndex.Doc> filter, Function<TestIndex.Doc, String> field) {
+        Map<BytesRef, Long> count = new HashMap<>();
+        for (TestIndex.Doc doc: index.docs) {
+            if (filter.test(doc) && field.apply(doc) != null) count.merge(new BytesRef(field.apply(doc)), 1L, Long::sum);
+        }
+        return count;
+    }
+
+    @Test
+    public void countsAcrossSegments() throws Exception {
+        try (TestIndex index = index()) {
+            assertEquals(3, index.reader.leaves().size());
+            Map<String, Map<BytesRef, Long>> count = index.search(new MatchAllDocsQuery(), new FacetCounter(FIELDS));
+            assertEquals(expected(index, doc -> true, TestIndex.Doc::host), count.get(LuceneFieldKeys.host.name()));
+            assertEquals(expected(index, doc -> true, TestIndex.Doc::severity), count.get(LuceneFieldKeys.severity.name()));
+        }
+    }
+
+    @Test
+    public void mergesLeafResults() throws Exception {
+        try (TestIndex index = index()) {
+            // LuceneReader.groupCountと同じくセグメント毎の結果を合算する
+            FacetCounter counter = new FacetCounter(FIELDS);
+            Map<String, Map<BytesRef, Long>> count = counter.reduce(List.of());
+            for (Map<String, Map<BytesRef, Long>> leaf: index.searchLeaves(new MatchAllDocsQuery(), counter)) {
+                FacetCounter.merge(count, leaf);
+            }
+            assertEquals(expected(index, doc -> true, TestIndex.Doc::host), count.get(LuceneFieldKeys.host.name()));
+            assertEquals(expected(index, doc -> true, TestIndex.Doc::severity), count.get(LuceneFieldKeys.severity.name()));
+            long total = 0;
+            for (long value: count.get(LuceneFieldKeys.severity.name()).values()) total += value;
+            assertEquals(index.docs.size(), total);
+        }
+    }
+
+    @Test
+    public void countsOnlyMatches() throws Exception {
+        try (TestIndex index = index()) {
+            Map<String, Map<BytesRef, Long>> count = index.search(
+                new TermQuery(new Term(LuceneFieldKeys.severity.name(), "s1")),
+                new FacetCounter(FIELDS)
+            );
+            assertEquals(expected(index, doc -> doc.severity().equals("s1"), TestIndex.Doc::host), count.get(LuceneFieldKeys.host.name()));
+            assertEquals(Map.of(new BytesRef("s1"), expected(index, doc -> true, TestIndex.Doc::severity).get(new BytesRef("s1"))), count.get(LuceneFieldKeys.severity.name()));
+        }
+    }
+
+    @Test
+    public void missingFieldIsEmpty() throws Exception {
+        try (TestIndex index = index()) {
+            Map<String, Map<BytesRef, Long>> count = index.search(new MatchAllDocsQuery(), new FacetCounter(List.of(LuceneFieldKeys.facility.name())));
+            assertEquals(Map.of(LuceneFieldKeys.facility.name(), Map.of()), count);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.example.IngestBuffer.Overflow;
+
+public class IngestBufferTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("ingest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (var files = Files.list(this.dir)) {
+            for (Path file: files.toList()) Files.delete(file);
+        }
+        Files.delete(this.dir);
+    }
+
+    private static boolean offer(IngestBuffer buffer, String addr, String message) throws IOException {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        return buffer.offer(System.currentTimeMillis(), addr, 514, data, 0, data.length);
+    }
+
+    // 空になるまで取り出したメッセージ
+    private static List<String> drain(IngestBuffer buffer) throws Exception {
+        List<String> messages = new ArrayList<>();
+        while (buffer.poll(slot -> messages.add(new String(slot.data, 0, slot.length, StandardCharsets.UTF_8))));
+        return messages;
+    }
+
+    private static long stat(IngestBuffer buffer, String key) {
+        return ((Number) buffer.getStats().get(key)).longValue();
+    }
+
+    @Test
+    public void capacityIsPowerOfTwo() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(5, Overflow.dropNewest, null, 0, null)) {
+            assertEquals(8, buffer.capacity());
+        }
+    }
+
+    @Test
+    public void pollReturnsInOrder() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(4, Overflow.dropNewest, null, 0, null)) {
+            for (int i = 0; i < 3; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+            assertEquals(3, buffer.size());
+            assertEquals(List.of("m0", "m1", "m2"), drain(buffer));
+            assertEquals(0, buffer.size());
+            // スロットを再利用しても前のデータが残らない
+            assertTrue(offer(buffer, "10.0.0.1", "x"));
+            assertEquals(List.of("x"), drain(buffer));
+        }
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(4, Overflow.dropNewest, null, 0, null)) {
+            for (int i = 0; i < 4; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+            assertFalse(offer(buffer, "10.0.0.1", "m4"));
+            assertFalse(offer(buffer, "10.0.0.2", "m5"));
+            assertEquals(6, stat(buffer, "received"));
+            assertEquals(2, stat(buffer, "dropped"));
+            assertEquals(4, stat(buffer, "highWater"));
+            Map<String, Map<String, Long>> sources = buffer.getSourceStats();
+            assertEquals(Long.valueOf(5), sources.get("10.0.0.1").get("received"));
+            assertEquals(Long.valueOf(1), sources.get("10.0.0.1").get("dropped"));
+            assertEquals(Long.valueOf(1), sources.get("10.0.0.2").get("dropped"));
+            assertEquals(List.of("m0", "m1", "m2", "m3"), drain(buffer));
+        }
+    }
+
+    @Test
+    public void dropOldestDiscardsHead() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(4, Overflow.dropOldest, null, 0, null)) {
+            for (int i = 0; i < 4; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+            assertTrue(offer(buffer, "10.0.0.2", "m4"));
+            assertTrue(offer(buffer, "10.0.0.2", "m5"));
+            assertEquals(List.of("m2", "m3", "m4", "m5"), drain(buffer));
+            assertEquals(6, stat(buffer, "received"));
+            assertEquals(2, stat(buffer, "dropped"));
+            // 破棄したパケットは送信元(古い方)で数える
+            Map<String, Map<String, Long>> sources = buffer.getSourceStats();
+            assertEquals(Long.valueOf(2), sources.get("10.0.0.1").get("dropped"));
+            assertEquals(Long.valueOf(0), sources.get("10.0.0.2").get("dropped"));
+        }
+    }
+
+    @Test
+    public void blockDropsAfterStop() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(2, Overflow.block, null, 0, null)) {
+            assertTrue(offer(buffer, "10.0.0.1", "m0"));
+            assertTrue(offer(buffer, "10.0.0.1", "m1"));
+            buffer.stop();
+            assertFalse(offer(buffer, "10.0.0.1", "m2"));
+            assertEquals(1, stat(buffer, "dropped"));
+            // 停止後も残っている分は取り出せる
+            assertTrue(buffer.take(slot -> {}));
+            assertTrue(buffer.take(slot -> {}));
+            assertFalse(buffer.take(slot -> {}));
+        }
+    }
+
+    @Test
+    public void spillKeepsOrder() throws Exception {
+        String path = this.dir.resolve("spill").toString();
+        try (IngestBuffer buffer = new IngestBuffer(2, Overflow.spill, path, 1024 * 1024, null)) {
+            for (int i = 0; i < 6; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+            assertEquals(4, stat(buffer, "spilled"));
+            assertTrue(stat(buffer, "spillBytes") > 0);
+            assertTrue(buffer.poll(slot -> {}));
+            // 退避中に受信したパケットはバッファに空きがあっても退避した分の後にする
+            assertTrue(offer(buffer, "10.0.0.1", "m6"));
+            assertEquals(List.of("m1", "m2", "m3", "m4", "m5", "m6"), drain(buffer));
+            assertEquals(0, stat(buffer, "spillBytes"));
+        }
+    }
+
+    @Test
+    public void spillDropsOverLimit() throws Exception {
+        String path = this.dir.resolve("spill").toString();
+        try (IngestBuffer buffer = new IngestBuffer(2, Overflow.spill, path, 64, null)) {
+            for (int i = 0; i < 2; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+            assertTrue(offer(buffer, "10.0.0.1", "0123456789"));
+            assertFalse(offer(buffer, "10.0.0.1", "0123456789"));
+            assertEquals(1, stat(buffer, "spilled"));
+            assertEquals(1, stat(buffer, "dropped"));
+        }
+    }
+
+    @Test
+    public void spillFileReplayedAfterRestart() throws Exception {
+        String path = this.dir.resolve("spill").toString();
+        try (IngestBuffer buffer = new IngestBuffer(2, Overflow.spill, path, 1024 * 1024, null)) {
+            for (int i = 0; i < 5; i++) assertTrue(offer(buffer, "10.0.0.1", "m" + i));
+        }
+        // 書き込み途中で終了したレコードは切り捨てる
+        Files.write(this.dir.resolve("spill"), new byte[] {0, 0, 0}, StandardOpenOption.APPEND);
+        try (IngestBuffer buffer = new IngestBuffer(2, Overflow.spill, path, 1024 * 1024, null)) {
+            assertTrue(offer(buffer, "10.0.0.1", "m5"));
+            List<String> addrs = new ArrayList<>();
+            List<String> messages = new ArrayList<>();
+            while (buffer.poll(slot -> {
+                addrs.add(slot.addr);
+                messages.add(new String(slot.data, 0, slot.length, StandardCharsets.UTF_8));
+            }));
+            assertEquals(List.of("m2", "m3", "m4", "m5"), messages);
+            assertEquals(List.of("10.0.0.1", "10.0.0.1", "10.0.0.1", "10.0.0.1"), addrs);
+        }
+    }
+
+    @Test
+    public void sourcesAreCapped() throws Exception {
+        try (IngestBuffer buffer = new IngestBuffer(4, Overflow.dropNewest, null, 0, null)) {
+            for (int i = 0; i < 2000; i++) offer(buffer, "10.0." + (i / 256) + "." + (i % 256), "m");
+            Map<String, Map<String, Long>> sources = buffer.getSourceStats();
+            assertEquals(1025, sources.size());
+            assertEquals(Long.valueOf(2000 - 1024), sources.get("other").get("received"));
+            assertEquals(2000, stat(buffer, "received"));
+            assertEquals(2000 - 4, stat(buffer, "dropped"));
+        }
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws Exception {
+        int producers = 4;
+        int messages = 20000;
+        try (IngestBuffer buffer = new IngestBuffer(64, Overflow.block, null, 0, null)) {
+            AtomicLong count = new AtomicLong();
+            AtomicLong sum = new AtomicLong();
+            List<Thread> consumers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Thread consumer = new Thread(() -> {
+                    try {
+                        while (buffer.take(slot -> {
+                            count.incrementAndGet();
+                            sum.addAndGet(Long.parseLong(new String(slot.data, 0, slot.length, StandardCharsets.UTF_8)));
+                        }));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                consumer.start();
+                consumers.add(consumer);
+            }
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < producers; i++) {
+                String addr = "10.0.0." + i;
+                Thread producer = new Thread(() -> {
+                    try {
+                        for (int n = 1; n <= messages; n++) assertTrue(offer(buffer, addr, String.valueOf(n)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                producer.start();
+                threads.add(producer);
+            }
+            for (Thread thread: threads) thread.join();
+            buffer.stop();
+            for (Thread thread: consumers) thread.join();
+            assertEquals((long) producers * messages, count.get());
+            assertEquals((long) producers * messages * (messages + 1) / 2, sum.get());
+            assertEquals(0, stat(buffer, "dropped"));
+            assertTrue(stat(buffer, "highWater") <= 64);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.TextStyle;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.example.SyslogParser.Facility;
+import com.example.SyslogParser.Rfc3164;
+import com.example.SyslogParser.Rfc5424;
+import com.example.SyslogParser.Severity;
+import com.example.SyslogParser.SyslogParseException;
+
+// RFC3164・RFC5424の例を、以前の(String.splitでの)パーサと同じ結果になることを確認する
+// 以前と異なるのは、MSGの空白を保持する・NILVALUEをnullにする・STRUCTURED-DATAを要素毎にする・年の付いた日時を受け付ける点
+public class SyslogParserTest {
+
+    private static Rfc3164 parse(String log) {
+        byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+        return SyslogParser.parser().parse(bytes, 0, bytes.length, "192.0.2.10");
+    }
+
+    // 年の無い日時は受信時の年になるため、年は比較しない
+    private static void assertDate(int month, int day, int hour, int minute, int second, LocalDateTime date) {
+        assertEquals(LocalDateTime.of(date.getYear(), month, day, hour, minute, second), date);
+    }
+
+    @Test
+    public void rfc3164() {
+        Rfc3164 data = parse("<34>Oct 11 22:14:15 mymachine su: 'su root' failed for lonvick on /dev/pts/8");
+        assertEquals("rfc3164", data.format);
+        assertEquals(Integer.valueOf(34), data.priority);
+        assertEquals(Facility.auth, data.facility);
+        assertEquals(Severity.crit, data.severity);
+        assertDate(10, 11, 22, 14, 15, data.date);
+        assertEquals(SyslogParser.zone("192.0.2.10"), data.zone);
+        assertEquals("mymachine", data.host);
+        assertEquals("su: 'su root' failed for lonvick on /dev/pts/8", data.message);
+        assertEquals("<34>Oct 11 22:14:15 mymachine su: 'su root' failed for lonvick on /dev/pts/8", data.raw);
+    }
+
+    @Test
+    public void rfc3164SingleDigitDay() {
+        Rfc3164 data = parse("<13>Feb  5 17:32:18 10.0.0.99 Use the BFG!");
+        assertEquals("rfc3164", data.format);
+        assertEquals(Facility.user, data.facility);
+        assertEquals(Severity.notice, data.severity);
+        assertDate(2, 5, 17, 32, 18, data.date);
+        assertEquals("10.0.0.99", data.host);
+        assertEquals("Use the BFG!", data.message);
+        // ddの先頭のSPが無い実装
+        assertDate(2, 5, 17, 32, 18, parse("<13>Feb 5 17:32:18 10.0.0.99 Use the BFG!").date);
+    }
+
+    @Test
+    public void rfc3164HostLikeToken() {
+        // 日時の後の最初の語をHOSTNAMEとする(以前と同じ)
+        Rfc3164 data = parse("<165>Aug 24 05:34:00 CST 1987 mymachine myproc[10]: %% It's time to make the do-nuts.");
+        assertEquals(Facility.local4, data.facility);
+        assertEquals(Severity.notice, data.severity);
+        assertDate(8, 24, 5, 34, 0, data.date);
+        assertEquals("CST", data.host);
+        assertEquals("1987 mymachine myproc[10]: %% It's time to make the do-nuts.", data.message);
+    }
+
+    @Test
+    public void rfc3164WithYear() {
+        // 以前は解析できなかった(RFC3164 5.4の例)
+        Rfc3164 data = parse("<0>1990 Oct 22 10:52:01 TZ-6 scapegoat.dmz.example.org 10.1.2.3 sched[0]: That's All Folks!");
+        assertEquals("rfc3164", data.format);
+        assertEquals(Facility.kern, data.facility);
+        assertEquals(Severity.emerg, data.severity);
+        assertEquals(LocalDateTime.of(1990, 10, 22, 10, 52, 1), data.date);
+        assertEquals(ZoneOffset.ofHours(-6), data.zone);
+        assertEquals("scapegoat.dmz.example.org", data.host);
+        assertEquals("10.1.2.3 sched[0]: That's All Folks!", data.message);
+    }
+
+    @Test
+    public void rfc3164Relayed() {
+        Rfc3164 data = parse("<0>Oct 22 10:52:12 scapegoat 1990 Oct 22 10:52:01 TZ-6 scapegoat.dmz.example.org 10.1.2.3 sched[0]: That's All Folks!");
+        assertDate(10, 22, 10, 52, 12, data.date);
+        assertEquals("scapegoat", data.host);
+        assertEquals("1990 Oct 22 10:52:01 TZ-6 scapegoat.dmz.example.org 10.1.2.3 sched[0]: That's All Folks!", data.message);
+    }
+
+    @Test
+    public void rfc3164Rfc3339Timestamp() {
+        Rfc3164 data = parse("<30>2024-05-01T09:08:07.123+09:00 host app: started");
+        assertEquals("rfc3164", data.format);
+        assertEquals(LocalDateTime.of(2024, 5, 1, 9, 8, 7, 123_000_000), data.date);
+        assertEquals(ZoneOffset.ofHours(9), data.zone);
+        assertEquals("host", data.host);
+        assertEquals("app: started", data.message);
+    }
+
+    @Test
+    public void rfc3164YearInference() {
+        // 受信時より2か月以上先の月は前年とする
+        LocalDateTime now = LocalDateTime.now(SyslogParser.zone("192.0.2.10"));
+        LocalDateTime date = parse("<13>Dec 31 23:59:59 gw sshd[123]: Accepted publickey for root").date;
+        assertEquals(now.getMonthValue() + 1 < 12 ? now.getYear() - 1 : now.getYear(), date.getYear());
+        String today = now.getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH) + String.format(" %2d ", now.getDayOfMonth());
+        assertEquals(now.getYear(), parse("<13>" + today + "00:00:00 gw test").date.getYear());
+    }
+
+    @Test
+    public void rfc3164PreservesWhitespace() {
+        Rfc3164 data = parse("<190>Jan  1 00:00:00 host msg with  two spaces\tand a tab");
+        assertEquals(Facility.local7, data.facility);
+        assertEquals(Severity.info, data.severity);
+        // 以前は連続する空白を1つにしていた
+        assertEquals("msg with  two spaces\\tand a tab", data.message);
+    }
+
+    @Test
+    public void rfc5424() {
+        Rfc5424 data = (Rfc5424) parse("<34>1 2003-10-11T22:14:15.003Z mymachine.example.com su - ID47 - BOM'su root' failed for lonvick on /dev/pts/8");
+        assertEquals("rfc5424", data.format);
+        assertEquals(Integer.valueOf(1), data.version);
+        assertEquals(Facility.auth, data.facility);
+        assertEquals(Severity.crit, data.severity);
+        assertEquals(LocalDateTime.of(2003, 10, 11, 22, 14, 15, 3_000_000), data.date);
+        assertEquals(ZoneOffset.UTC, data.zone);
+        assertEquals("mymachine.example.com", data.host);
+        assertEquals("su", data.app);
+        assertNull(data.procid);
+        assertEquals("ID47", data.msgid);
+        assertEquals(List.of(), data.structured);
+        assertEquals("BOM'su root' failed for lonvick on /dev/pts/8", data.message);
+    }
+
+    @Test
+    public void rfc5424Offset() {
+        Rfc5424 data = (Rfc5424) parse("<165>1 2003-08-24T05:14:15.000003-07:00 192.0.2.1 myproc 8710 - - %% It's time to make the do-nuts.");
+        assertEquals(Facility.local4, data.facility);
+        assertEquals(Severity.notice, data.severity);
+        assertEquals(LocalDateTime.of(2003, 8, 24, 5, 14, 15, 3_000), data.date);
+        assertEquals(ZoneOffset.ofHours(-7), data.zone);
+        assertEquals("192.0.2.1", data.host);
+        assertEquals("myproc", data.app);
+        assertEquals("8710", data.procid);
+        assertNull(data.msgid);
+        assertEquals("%% It's time to make the do-nuts.", data.message);
+    }
+
+    @Test
+    public void rfc5424StructuredData() {
+        Rfc5424 data = (Rfc5424) parse("<165>1 2003-10-11T22:14:15.003Z mymachine.example.com evntslog - ID47 [exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\"] BOMAn application event log entry...");
+        assertEquals("evntslog", data.app);
+        assertEquals(List.of("exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\""), data.structured);
+        assertEquals("BOMAn application event log entry...", data.message);
+
+        data = (Rfc5424) parse("<14>1 2024-02-29T12:00:00+09:00 host app 1 - [a@1 x=\"]\\\"\"][b@2 y=\"2\"] two sd elements");
+        assertEquals(List.of("a@1 x=\"]\\\"\"", "b@2 y=\"2\""), data.structured);
+        assertEquals("two sd elements", data.message);
+    }
+
+    @Test
+    public void rfc5424Bom() {
+        byte[] header = "<14>1 2024-02-29T12:00:00Z host app - - - ".getBytes(StandardCharsets.UTF_8);
+        byte[] message = "メッセージ".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[header.length + 3 + message.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        bytes[header.length] = (byte) 0xEF;
+        bytes[header.length + 1] = (byte) 0xBB;
+        bytes[header.length + 2] = (byte) 0xBF;
+        System.arraycopy(message, 0, bytes, header.length + 3, message.length);
+        Rfc3164 data = SyslogParser.parser().parse(bytes, 0, bytes.length, null);
+        assertEquals("rfc5424", data.format);
+        assertEquals("メッセージ", data.message);
+    }
+
+    @Test
+    public void offsetAndLength() {
+        byte[] bytes = "xxxx<13>Feb  5 17:32:18 host message\nyyyy".getBytes(StandardCharsets.UTF_8);
+        Rfc3164 data = SyslogParser.parser().parse(bytes, 4, bytes.length - 8, null);
+        assertEquals("host", data.host);
+        assertEquals("message\\n", data.message);
+        assertArrayEquals("message\n".getBytes(StandardCharsets.UTF_8), SyslogParser.unescape(data.message));
+    }
+
+    @Test
+    public void unknown() {
+        Rfc3164 data = parse("no priority");
+        assertEquals("unknown", data.format);
+        assertNull(data.priority);
+        assertEquals("192.0.2.10", data.host);
+        assertEquals("no priority", data.message);
+        assertEquals("unknown", parse("<192>Oct 11 22:14:15 host over 191").format);
+        assertEquals("unknown", parse("<13>Foo 11 22:14:15 host bad month").format);
+    }
+
+    @Test(expected = SyslogParseException.class)
+    public void parseStringRejectsUnknown() throws SyslogParseException {
+        SyslogParser.parse("no priority");
+    }
+}
@@ -0,0 +1,116 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.example.IngestBuffer.Overflow;
+
+public class SyslogTcpReceiverTest {
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // partsを1つずつ送信し(間を空けて別々に読ませる)、接続を閉じた後にバッファへ入ったフレームを返す
+    private static List<String> receive(int frameSize, String... parts) throws Exception {
+        int port = freePort();
+        try (IngestBuffer buffer = new IngestBuffer(1024, Overflow.dropNewest, null, 0, null)) {
+            SyslogTcpReceiver receiver = new SyslogTcpReceiver(port, buffer, 4, frameSize);
+            Thread thread = new Thread(receiver);
+            thread.start();
+            try {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    OutputStream output = socket.getOutputStream();
+                    for (String part: parts) {
+                        output.write(part.getBytes(StandardCharsets.UTF_8));
+                        output.flush();
+                        Thread.sleep(50);
+                    }
+                }
+                long limit = System.currentTimeMillis() + 5000;
+                while (((Number) receiver.getStats().get("accepted")).longValue() < 1 || ((Number) receiver.getStats().get("connections")).longValue() > 0) {
+                    assertTrue("connection not closed", System.currentTimeMillis() < limit);
+                    Thread.sleep(10);
+                }
+            } finally {
+                receiver.stop();
+                thread.join();
+            }
+            List<String> frames = new ArrayList<>();
+            while (buffer.poll(slot -> frames.add(new String(slot.data, 0, slot.length, StandardCharsets.UTF_8))));
+            return frames;
+        }
+    }
+
+    @Test
+    public void octetCounting() throws Exception {
+        assertEquals(
+            List.of("<13>one", "<13>two\nlines", "<13>three"),
+            receive(1024, "7 <13>one13 <13>two\nlines9 <13>three")
+        );
+    }
+
+    @Test
+    public void nonTransparentFraming() throws Exception {
+        // CRLF・NUL区切りも受け付け、接続終了時に改行の無い最後のフレームも登録する
+        assertEquals(
+            List.of("<13>one", "<13>two", "<13>three", "<13>last"),
+            receive(1024, "<13>one\n<13>two\r\n\n<13>three\0<13>last")
+        );
+    }
+
+    @Test
+    public void splitOctetCountedFrame() throws Exception {
+        // MSG-LENの途中・SYSLOG-MSGの途中で分割
+        assertEquals(
+            List.of("<13>hello world", "<13>next"),
+            receive(1024, "1", "5 <13>hel", "lo world8 <13>n", "ext")
+        );
+    }
+
+    @Test
+    public void splitNonTransparentFrame() throws Exception {
+        assertEquals(
+            List.of("<13>hello world", "<13>next"),
+            receive(1024, "<13>hel", "lo world", "\n<13>next\n")
+        );
+    }
+
+    @Test
+    public void mixedFraming() throws Exception {
+        assertEquals(
+            List.of("<13>counted", "<13>line", "<13>again"),
+            receive(1024, "11 <13>counted<13>line\n9 <13>again")
+        );
+    }
+
+    @Test
+    public void oversizedOctetCountedFrameIsTruncated() throws Exception {
+        String message = "<13>" + "x".repeat(100);
+        List<String> frames = receive(32, message.length() + " " + message, "8 <13>next");
+        assertEquals(2, frames.size());
+        // MSG-LENを除いたバッファの残りまでを登録し、フレームの残りは読み捨てる
+        assertEquals(message.substring(0, 32 - 4), frames.get(0));
+        assertEquals("<13>next", frames.get(1));
+    }
+
+    @Test
+    public void oversizedLineIsSplit() throws Exception {
+        String message = "<13>" + "x".repeat(60);
+        List<String> frames = receive(32, message + "\n<13>next\n");
+        assertEquals(String.join("", frames.subList(0, frames.size() - 1)), message);
+        assertEquals("<13>next", frames.get(frames.size() - 1));
+    }
+}
@@ -0,0 +1,107 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+// 集計のテスト用のメモリ上のindex(segmentsの範囲毎に1セグメント、timestamp・host・severityを乱数で決める)
+class TestIndex implements Closeable {
+
+    static record Doc(long timestamp, String host, String severity) {}
+
+    final List<Doc> docs = new ArrayList<>();
+    final DirectoryReader reader;
+    private final ByteBuffersDirectory dir = new ByteBuffersDirectory();
+
+    // segmentsは{件数, timestampの最小, 最大(含まない)}
+    TestIndex(long seed, long[]... segments) throws IOException {
+        this(random(seed, segments));
+    }
+
+    // 指定したドキュメントでセグメントを作る
+    TestIndex(List<List<Doc>> segments) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig();
+        iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(this.dir, iwc)) {
+            for (List<Doc> segment: segments) {
+                for (Doc doc: segment) {
+                    this.docs.add(doc);
+                    writer.addDocument(document(doc));
+                }
+                writer.commit();
+            }
+        }
+        this.reader = DirectoryReader.open(this.dir);
+    }
+
+    private static List<List<Doc>> random(long seed, long[]... segments) {
+        Random random = new Random(seed);
+        List<List<Doc>> docs = new ArrayList<>();
+        for (long[] segment: segments) {
+            List<Doc> segmentDocs = new ArrayList<>();
+            for (int i = 0; i < segment[0]; i++) {
+                long timestamp = segment[1] + (long) (random.nextDouble() * (segment[2] - segment[1]));
+                // 件数に偏りを付け、一部はhostを持たない
+                String host = random.nextInt(20) == 0 ? null : "host" + Math.min(9, (int) (-Math.log(1 - random.nextDouble()) * 3));
+                String severity = "s" + random.nextInt(4);
+                segmentDocs.add(new Doc(timestamp, host, severity));
+            }
+            docs.add(segmentDocs);
+        }
+        return docs;
+    }
+
+    private static Document document(Doc doc) {
+        Document document = new Document();
+        document.add(new LongPoint(LuceneFieldKeys.timestamp.name(), doc.timestamp()));
+        document.add(new NumericDocValuesField(LuceneFieldKeys.timestamp.name(), doc.timestamp()));
+        if (doc.host() != null) {
+            document.add(new StringField(LuceneFieldKeys.host.name(), doc.host(), Store.NO));
+            document.add(new SortedDocValuesField(LuceneFieldKeys.host.name(), new BytesRef(doc.host())));
+        }
+        document.add(new StringField(LuceneFieldKeys.severity.name(), doc.severity(), Store.NO));
+        document.add(new SortedDocValuesField(LuceneFieldKeys.severity.name(), new BytesRef(doc.severity())));
+        return document;
+    }
+
+    // LuceneReaderと同じく、セグメント毎に別々に検索した結果(セグメントの順)
+    <C extends Collector, T> List<T> searchLeaves(Query query, CollectorManager<C, T> manager) throws IOException {
+        List<T> results = new ArrayList<>();
+        for (LeafReaderContext context: this.reader.leaves()) {
+            results.add(new IndexSearcher(context.reader()).search(query, manager));
+        }
+        return results;
+    }
+
+    <C extends Collector, T> T search(Query query, CollectorManager<C, T> manager) throws IOException {
+        return new IndexSearcher(this.reader).search(query, manager);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+        this.dir.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+public class TimelineCounterTest {
+
+    // 重なる2つのセグメントと、離れた1つのセグメント
+    private static TestIndex index() throws Exception {
+        return new TestIndex(19, new long[] {200, 0, 1000}, new long[] {300, 500, 3000}, new long[] {100, 5000, 6000});
+    }
+
+    // ドキュメントを1件ずつ数えた結果(範囲外は数えない)
+    private static long[] expected(TestIndex index, long start, long width, int size, long from, long to) {
+        long[] counts = new long[size];
+        for (TestIndex.Doc doc: index.docs) {
+            if (doc.timestamp() < from || doc.timestamp() > to) continue;
+            long bucket = Math.floorDiv(doc.timestamp() - start, width);
+            if (bucket >= 0 && bucket < size) counts[(int) bucket]++;
+        }
+        return counts;
+    }
+
+    private static TimelineCounter.Histogram leaves(TestIndex index, Query query, TimelineCounter counter) throws Exception {
+        // LuceneReader.timelineと同じくセグメント毎のCounterをまとめる
+        return counter.reduce(index.searchLeaves(query, counter.leaf()));
+    }
+
+    @Test
+    public void mergesSegmentRanges() throws Exception {
+        try (TestIndex index = index()) {
+            // 1つのCounterで全セグメントを集計するため、離れた区間の配列をまとめる
+            TimelineCounter.Histogram histogram = index.search(new MatchAllDocsQuery(), new TimelineCounter(0, 100, 60));
+            assertEquals(0, histogram.start());
+            assertEquals(100, histogram.width());
+            assertArrayEquals(expected(index, 0, 100, 60, Long.MIN_VALUE, Long.MAX_VALUE), histogram.counts());
+            assertEquals(index.docs.size(), histogram.total());
+            for (int i = 30; i < 50; i++) assertEquals(0, histogram.counts()[i]);
+        }
+    }
+
+    @Test
+    public void reducesLeafCounters() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineCounter counter = new TimelineCounter(0, 100, 60);
+            TimelineCounter.Histogram histogram = leaves(index, new MatchAllDocsQuery(), counter);
+            assertArrayEquals(index.search(new MatchAllDocsQuery(), counter).counts(), histogram.counts());
+            assertEquals(index.reader.numDocs(), histogram.total());
+        }
+    }
+
+    @Test
+    public void clampsToRange() throws Exception {
+        try (TestIndex index = index()) {
+            // 最初のセグメントは全て範囲より前、2番目は途中から
+            Query query = LongPoint.newRangeQuery(LuceneFieldKeys.timestamp.name(), 2000, 7999);
+            TimelineCounter counter = new TimelineCounter(2000, 100, 60);
+            long[] expected = expected(index, 2000, 100, 60, 2000, 7999);
+            assertArrayEquals(expected, index.search(query, counter).counts());
+            assertArrayEquals(expected, leaves(index, query, counter).counts());
+            assertEquals(index.docs.stream().filter(doc -> doc.timestamp() >= 2000).count(), leaves(index, query, counter).total());
+        }
+    }
+
+    @Test
+    public void dropsOutsideBuckets() throws Exception {
+        try (TestIndex index = index()) {
+            // 一致しても区間の外のドキュメントは数えない
+            TimelineCounter counter = new TimelineCounter(700, 50, 10);
+            long[] expected = expected(index, 700, 50, 10, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertArrayEquals(expected, index.search(new MatchAllDocsQuery(), counter).counts());
+            assertArrayEquals(expected, leaves(index, new MatchAllDocsQuery(), counter).counts());
+            assertEquals(index.docs.stream().filter(doc -> doc.timestamp() >= 700 && doc.timestamp() < 1200).count(), leaves(index, new MatchAllDocsQuery(), counter).total());
+        }
+    }
+}
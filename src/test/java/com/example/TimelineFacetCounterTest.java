@@ -0,0 +1,150 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import com.example.SyslogReceiver.LuceneFieldKeys;
+
+public class TimelineFacetCounterTest {
+
+    private static final String HOST = LuceneFieldKeys.host.name();
+
+    private static TestIndex index() throws Exception {
+        return new TestIndex(20, new long[] {200, 0, 1000}, new long[] {300, 500, 3000}, new long[] {100, 5000, 6000});
+    }
+
+    // hostの値毎・区間毎にドキュメントを1件ずつ数えた結果
+    private static Map<BytesRef, long[]> expected(TestIndex index, long start, long width, int size) {
+        Map<BytesRef, long[]> rows = new HashMap<>();
+        for (TestIndex.Doc doc: index.docs) {
+            long bucket = Math.floorDiv(doc.timestamp() - start, width);
+            if (doc.host() == null || bucket < 0 || bucket >= size) continue;
+            rows.computeIfAbsent(new BytesRef(doc.host()), key -> new long[size])[(int) bucket]++;
+        }
+        return rows;
+    }
+
+    private static long total(long[] counts) {
+        long total = 0;
+        for (long count: counts) total += count;
+        return total;
+    }
+
+    // LuceneReader.timelineと同じくFacetCounterの件数から上位top件の値を決める
+    private static TimelineFacetCounter counter(TestIndex index, long start, long width, int size, int top) throws Exception {
+        Map<BytesRef, Long> counts = index.search(new MatchAllDocsQuery(), new FacetCounter(List.of(HOST))).get(HOST);
+        return new TimelineFacetCounter(start, width, size, HOST, TimelineFacetCounter.top(counts, top));
+    }
+
+    private static TimelineFacetCounter.Matrix leaves(TestIndex index, TimelineFacetCounter counter) throws Exception {
+        // LuceneReader.timelineと同じくセグメント毎のCounterをまとめる
+        return counter.reduce(index.searchLeaves(new MatchAllDocsQuery(), counter.leaf()));
+    }
+
+    private static void assertMatrixEquals(TimelineFacetCounter.Matrix expected, TimelineFacetCounter.Matrix actual) {
+        assertEquals(expected.values(), actual.values());
+        for (int i = 0; i < expected.counts().length; i++) assertArrayEquals(expected.counts()[i], actual.counts()[i]);
+        assertArrayEquals(expected.other(), actual.other());
+    }
+
+    @Test
+    public void topValuesAndOther() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineFacetCounter.Matrix matrix = index.search(new MatchAllDocsQuery(), counter(index, 0, 100, 60, 3));
+            Map<BytesRef, long[]> rows = expected(index, 0, 100, 60);
+            // 件数の多い順、同じ件数は値の順
+            List<BytesRef> values = rows.keySet().stream().sorted(
+                (a, b) -> total(rows.get(a)) == total(rows.get(b)) ? a.compareTo(b) : Long.compare(total(rows.get(b)), total(rows.get(a)))
+            ).toList();
+            assertEquals(values.subList(0, 3), matrix.values());
+            for (int i = 0; i < 3; i++) assertArrayEquals(rows.get(values.get(i)), matrix.counts()[i]);
+            // 上位以外の値はotherにまとめる
+            long[] other = new long[60];
+            for (BytesRef value: values.subList(3, values.size())) {
+                for (int j = 0; j < 60; j++) other[j] += rows.get(value)[j];
+            }
+            assertArrayEquals(other, matrix.other());
+        }
+    }
+
+    @Test
+    public void rowsAddUpToTimeline() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineFacetCounter.Matrix matrix = index.search(new MatchAllDocsQuery(), counter(index, 0, 100, 60, 3));
+            long[] timeline = index.search(new MatchAllDocsQuery(), new TimelineCounter(0, 100, 60)).counts();
+            // hostを持たないドキュメントは数えない
+            for (TestIndex.Doc doc: index.docs) {
+                if (doc.host() == null) timeline[(int) Math.floorDiv(doc.timestamp(), 100)]--;
+            }
+            long[] sum = matrix.other().clone();
+            for (long[] row: matrix.counts()) {
+                for (int j = 0; j < sum.length; j++) sum[j] += row[j];
+            }
+            assertArrayEquals(timeline, sum);
+            assertEquals(index.docs.stream().filter(doc -> doc.host() != null).count(), total(sum));
+        }
+    }
+
+    @Test
+    public void topExceedsDistinctValues() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineFacetCounter.Matrix matrix = index.search(new MatchAllDocsQuery(), counter(index, 0, 100, 60, 100));
+            Map<BytesRef, long[]> rows = expected(index, 0, 100, 60);
+            assertEquals(rows.size(), matrix.values().size());
+            for (int i = 0; i < matrix.values().size(); i++) assertArrayEquals(rows.get(matrix.values().get(i)), matrix.counts()[i]);
+            assertArrayEquals(new long[60], matrix.other());
+        }
+    }
+
+    @Test
+    public void leafCountersMatch() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineFacetCounter counter = counter(index, 0, 100, 60, 3);
+            assertMatrixEquals(index.search(new MatchAllDocsQuery(), counter), leaves(index, counter));
+            // 区間の外のセグメントがある場合
+            counter = counter(index, 700, 50, 10, 3);
+            assertMatrixEquals(index.search(new MatchAllDocsQuery(), counter), leaves(index, counter));
+        }
+    }
+
+    @Test
+    public void tiesOrderedByValue() throws Exception {
+        // hostAとhostCは2件ずつ(別のセグメント)、hostBは3件
+        List<List<TestIndex.Doc>> segments = new ArrayList<>();
+        segments.add(List.of(new TestIndex.Doc(0, "hostC", "s0"), new TestIndex.Doc(150, "hostB", "s0"), new TestIndex.Doc(250, "hostA", "s0")));
+        segments.add(List.of(new TestIndex.Doc(120, "hostC", "s0"), new TestIndex.Doc(130, "hostB", "s0"), new TestIndex.Doc(260, "hostB", "s0"), new TestIndex.Doc(270, "hostA", "s0")));
+        try (TestIndex index = new TestIndex(segments)) {
+            TimelineFacetCounter counter = counter(index, 0, 100, 3, 2);
+            TimelineFacetCounter.Matrix matrix = index.search(new MatchAllDocsQuery(), counter);
+            assertEquals(List.of(new BytesRef("hostB"), new BytesRef("hostA")), matrix.values());
+            assertArrayEquals(new long[] {0, 2, 1}, matrix.counts()[0]);
+            assertArrayEquals(new long[] {0, 0, 2}, matrix.counts()[1]);
+            assertArrayEquals(new long[] {1, 1, 0}, matrix.other());
+            assertMatrixEquals(matrix, leaves(index, counter));
+        }
+    }
+
+    @Test
+    public void zeroTopCountsOnlyOther() throws Exception {
+        try (TestIndex index = index()) {
+            TimelineFacetCounter counter = counter(index, 0, 100, 60, 0);
+            TimelineFacetCounter.Matrix matrix = index.search(new MatchAllDocsQuery(), counter);
+            assertEquals(List.of(), matrix.values());
+            long[] other = new long[60];
+            for (long[] row: expected(index, 0, 100, 60).values()) {
+                for (int j = 0; j < 60; j++) other[j] += row[j];
+            }
+            assertArrayEquals(other, matrix.other());
+            assertMatrixEquals(matrix, leaves(index, counter));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.example.IndexBatcher.Durability;
+import com.example.IndexPartitions.Mode;
+
+public class WriteAheadSpoolTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(this.dir)) {
+            for (Path file: files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    private static long append(WriteAheadSpool spool, String message) {
+        return spool.append(1000, "192.0.2.1", 514, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // 再登録したレコードのseqとメッセージ
+    private static List<String> replay(WriteAheadSpool spool, long committed) throws Exception {
+        List<String> records = new ArrayList<>();
+        spool.replay(committed, (seq, timestamp, addr, port, data) -> {
+            assertEquals(1000, timestamp);
+            assertEquals("192.0.2.1", addr);
+            assertEquals(514, port);
+            records.add(seq + ":" + new String(data, StandardCharsets.UTF_8));
+        });
+        return records;
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        String path = this.dir.resolve("spool").toString();
+        WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024);
+        spool.replay(0, (seq, timestamp, addr, port, data) -> {});
+        assertEquals(1, append(spool, "m1"));
+        assertEquals(2, append(spool, "m2"));
+        assertEquals(3, append(spool, ""));
+        spool.sync();
+        // closeせずに開き直す(異常終了)
+        WriteAheadSpool reopened = new WriteAheadSpool(path, 64 * 1024);
+        assertEquals(List.of("1:m1", "2:m2", "3:"), replay(reopened, 0));
+        assertEquals(3, reopened.getSeq());
+        assertEquals(4, append(reopened, "m4"));
+        reopened.close();
+        spool.close();
+    }
+
+    @Test
+    public void replayAfterCommitted() throws Exception {
+        String path = this.dir.resolve("spool").toString();
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024)) {
+            spool.replay(0, (seq, timestamp, addr, port, data) -> {});
+            for (int i = 1; i <= 5; i++) append(spool, "m" + i);
+        }
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024)) {
+            assertEquals(List.of("4:m4", "5:m5"), replay(spool, 3));
+            // commit済みより前のseqは使わない
+            assertEquals(6, append(spool, "m6"));
+        }
+    }
+
+    @Test
+    public void watermarkWaitsForPending() throws Exception {
+        try (WriteAheadSpool spool = new WriteAheadSpool(this.dir.resolve("spool").toString(), 64 * 1024)) {
+            spool.replay(0, (seq, timestamp, addr, port, data) -> {});
+            for (int i = 1; i <= 5; i++) append(spool, "m" + i);
+            assertEquals(0, spool.watermark());
+            spool.done(1);
+            spool.done(2);
+            spool.done(4);
+            // 3が登録されるまでは2まで
+            assertEquals(2, spool.watermark());
+            spool.done(3);
+            spool.done(5);
+            assertEquals(5, spool.watermark());
+        }
+    }
+
+    @Test
+    public void halvesAreReusedAfterCommit() throws Exception {
+        String path = this.dir.resolve("spool").toString();
+        String message = "x".repeat(50);
+        // 半分(256バイト)に2件ずつ入る
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 512)) {
+            spool.replay(0, (seq, timestamp, addr, port, data) -> {});
+            assertEquals(1, append(spool, message));
+            assertEquals(2, append(spool, message));
+            assertFalse(spool.shouldCommit());
+            assertEquals(3, append(spool, message));
+            assertEquals(4, append(spool, message));
+            // もう半分がcommitされていないため、埋まる前にcommitが必要
+            assertTrue(spool.shouldCommit());
+            assertEquals(-1, append(spool, message));
+            assertEquals(1L, spool.getStats().get("overflowed"));
+            for (long seq = 1; seq <= 4; seq++) spool.done(seq);
+            spool.commit(2);
+            assertFalse(spool.shouldCommit());
+            assertEquals(5, append(spool, message));
+            assertEquals(2L, spool.getStats().get("switches"));
+        }
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 512)) {
+            List<String> records = replay(spool, 2);
+            assertEquals(List.of("3:" + message, "4:" + message, "5:" + message), records);
+            assertEquals(6, append(spool, message));
+        }
+    }
+
+    @Test
+    public void replayStopsAtCorruptRecord() throws Exception {
+        String path = this.dir.resolve("spool").toString();
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024)) {
+            spool.replay(0, (seq, timestamp, addr, port, data) -> {});
+            append(spool, "m1");
+            append(spool, "m2");
+            append(spool, "m3");
+        }
+        // 2件目のデータを書き換える(書き込み途中で終了した場合と同じ)
+        int record = 8 + 22 + "192.0.2.1".length() + 2;
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(record + record - 1);
+            file.write('X');
+        }
+        try (WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024)) {
+            assertEquals(List.of("1:m1"), replay(spool, 0));
+        }
+    }
+
+    private static IndexPartitions partitions(Path path) throws IOException {
+        return new IndexPartitions(path, new StandardAnalyzer(), Mode.none, 0, 0, false, ZoneOffset.UTC);
+    }
+
+    private static void receive(WriteAheadSpool spool, IndexBatcher batcher, String message) throws Exception {
+        long seq = append(spool, message);
+        DocumentTemplate template = DocumentTemplate.acquire();
+        template.set(1000, "192.0.2.1", 514, SyslogParser.parse(message));
+        template.seq(seq);
+        batcher.add(template);
+    }
+
+    private static void await(IndexBatcher batcher, String key, long value) throws InterruptedException {
+        long limit = System.currentTimeMillis() + 10000;
+        while (((Number) batcher.getStats().get(key)).longValue() < value) {
+            assertTrue(key + " not reached " + value, System.currentTimeMillis() < limit);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int numDocs(IndexPartitions partitions) throws IOException {
+        partitions.refresh();
+        int count = 0;
+        for (DirectoryReader reader: partitions.acquire()) {
+            count += reader.numDocs();
+            reader.decRef();
+        }
+        return count;
+    }
+
+    private static void copy(Path src, Path dst) throws IOException {
+        try (var files = Files.walk(src)) {
+            for (Path file: files.toList()) Files.copy(file, dst.resolve(src.relativize(file).toString()));
+        }
+    }
+
+    @Test
+    public void uncommittedDocumentsReplayedFromSpool() throws Exception {
+        Path index = this.dir.resolve("index");
+        String path = this.dir.resolve("spool").toString();
+        Path crash = this.dir.resolve("crash");
+        Files.createDirectories(crash);
+        try (
+            IndexPartitions partitions = partitions(index);
+            WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024);
+        ) {
+            // 3件毎にcommitする
+            IndexBatcher batcher = new IndexBatcher(partitions, spool, 100, 10, 3, 3_600_000, Durability.interval);
+            batcher.start();
+            for (int i = 1; i <= 3; i++) receive(spool, batcher, "<13>Oct 11 22:14:15 host message " + i);
+            await(batcher, "committed", 3);
+            for (int i = 4; i <= 5; i++) receive(spool, batcher, "<13>Oct 11 22:14:15 host message " + i);
+            await(batcher, "indexed", 5);
+            assertEquals(3L, batcher.getStats().get("committed"));
+            // commitしていない2件がある状態のファイルを異常終了後の状態とする
+            spool.sync();
+            copy(index, crash.resolve("index"));
+            Files.copy(Path.of(path), crash.resolve("spool"));
+            batcher.close();
+        }
+        try (
+            IndexPartitions partitions = partitions(crash.resolve("index"));
+            WriteAheadSpool spool = new WriteAheadSpool(crash.resolve("spool").toString(), 64 * 1024);
+        ) {
+            assertEquals(3, numDocs(partitions));
+            IndexBatcher batcher = new IndexBatcher(partitions, spool, 100, 10, 3, 3_600_000, Durability.interval);
+            batcher.start();
+            assertEquals(5, numDocs(partitions));
+            assertEquals(2L, spool.getStats().get("replayed"));
+            assertEquals(Map.of("spool.seq", "5"), partitions.getCommitData().get(0));
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void rejectedDocumentIsSkipped() throws Exception {
+        try (
+            IndexPartitions partitions = partitions(this.dir.resolve("index"));
+            WriteAheadSpool spool = new WriteAheadSpool(this.dir.resolve("spool").toString(), 256 * 1024);
+        ) {
+            IndexBatcher batcher = new IndexBatcher(partitions, spool, 100, 10, 3, 3_600_000, Durability.interval);
+            batcher.start();
+            receive(spool, batcher, "<13>Oct 11 22:14:15 host message 1");
+            // hostが長すぎて登録できないドキュメントだけを読み飛ばす
+            receive(spool, batcher, "<13>Oct 11 22:14:15 " + "h".repeat(40000) + " message 2");
+            receive(spool, batcher, "<13>Oct 11 22:14:15 host message 3");
+            await(batcher, "committed", 3);
+            assertEquals(2, numDocs(partitions));
+            assertEquals(1L, partitions.getStats().get("rejected"));
+            assertEquals(Map.of("spool.seq", "3"), partitions.getCommitData().get(0));
+            assertEquals(false, batcher.getStats().get("failed"));
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void failedBatchStaysInSpool() throws Exception {
+        Path index = this.dir.resolve("index");
+        String path = this.dir.resolve("spool").toString();
+        try (
+            IndexPartitions partitions = partitions(index);
+            WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024);
+        ) {
+            IndexBatcher batcher = new IndexBatcher(partitions, spool, 100, 10, 3, 3_600_000, Durability.interval);
+            batcher.start();
+            for (int i = 1; i <= 3; i++) receive(spool, batcher, "<13>Oct 11 22:14:15 host message " + i);
+            await(batcher, "committed", 3);
+            // 書き込めなくなった後のドキュメントで止まる
+            partitions.close();
+            receive(spool, batcher, "<13>Oct 11 22:14:15 host message 4");
+            long limit = System.currentTimeMillis() + 10000;
+            while (!(Boolean) batcher.getStats().get("failed")) {
+                assertTrue("batcher not failed", System.currentTimeMillis() < limit);
+                Thread.sleep(10);
+            }
+            try {
+                receive(spool, batcher, "<13>Oct 11 22:14:15 host message 5");
+                assertTrue("add after failure", false);
+            } catch (IOException e) {
+                assertEquals("IndexBatcher stopped by index failure.", e.getMessage());
+            }
+            batcher.close();
+            // 登録できなかったseqより後へは進めない
+            assertEquals(3, spool.watermark());
+        }
+        try (
+            IndexPartitions partitions = partitions(index);
+            WriteAheadSpool spool = new WriteAheadSpool(path, 64 * 1024);
+        ) {
+            assertEquals(3, numDocs(partitions));
+            assertEquals(Map.of("spool.seq", "3"), partitions.getCommitData().get(0));
+            List<Long> seqs = new ArrayList<>();
+            spool.replay(3, (seq, timestamp, addr, port, data) -> seqs.add(seq));
+            assertEquals(List.of(4L, 5L), seqs);
+        }
+    }
+}